@@ -19,11 +19,9 @@
  */
 package org.neo4j.index.bdbje;
 
+import java.util.Arrays;
 import java.util.Collection;
 
-import javolution.util.FastList;
-import javolution.util.FastSet;
-
 abstract class ArrayUtil
 {
 	public static byte[] toBytes( long... values )
@@ -71,70 +69,139 @@ abstract class ArrayUtil
 		return result;
 	}
 
-	@SuppressWarnings("boxing")
+	/**
+	 * Merges two id sets into one sorted array without duplicates. If
+	 * <code>existingIds</code> already contains all of <code>entityIds</code>
+	 * it is returned as is.
+	 */
 	public static long[] include( long[] existingIds, long[] entityIds ) {
-		FastSet<Long> ids = FastSet.newInstance();
-		try {
-			for ( int i = 0; i < existingIds.length; i++ ) {
-				ids.add( existingIds[i] );
+		long[] a = sorted( existingIds );
+		long[] b = sorted( entityIds );
+		if ( b.length == 0 ) {
+			return a;
+		}
+
+		int count = 0;
+		int i = 0, j = 0;
+		while ( i < a.length || j < b.length ) {
+			if ( j == b.length || ( i < a.length && a[i] < b[j] ) ) {
+				i++;
+			} else if ( i == a.length || b[j] < a[i] ) {
+				j = skip( b, j );
+			} else {
+				i++;
+				j = skip( b, j );
 			}
-			for ( int i = 0; i < entityIds.length; i++ ) {
-				ids.add( entityIds[i] );
+			count++;
+		}
+		if ( count == a.length ) {
+			return a;
+		}
+
+		long[] result = new long[count];
+		int k = 0;
+		i = 0;
+		j = 0;
+		while ( i < a.length || j < b.length ) {
+			if ( j == b.length || ( i < a.length && a[i] < b[j] ) ) {
+				result[k++] = a[i++];
+			} else if ( i == a.length || b[j] < a[i] ) {
+				result[k++] = b[j];
+				j = skip( b, j );
+			} else {
+				result[k++] = a[i++];
+				j = skip( b, j );
 			}
-			return ArrayUtil.toPrimitiveLongArray( ids );
-		} finally {
-			FastSet.recycle(ids);
 		}
+		return result;
 	}
 
-	@SuppressWarnings("boxing")
+	/**
+	 * Returns the sorted ids of <code>existingIds</code> which are not in
+	 * <code>entityIds</code>. If nothing is removed <code>existingIds</code>
+	 * is returned as is.
+	 */
 	public static long[] exclude( long[] existingIds, long[] entityIds )
 	{
-		FastSet<Long> entityIdsSet = FastSet.newInstance();
-		try {
-			for ( int i = 0; i < entityIds.length; i++ ) {
-				entityIdsSet.add( entityIds[i] );
+		long[] a = sorted( existingIds );
+		long[] b = sorted( entityIds );
+
+		int count = 0;
+		for ( int i = 0, j = 0; i < a.length; i++ ) {
+			while ( j < b.length && b[j] < a[i] ) {
+				j++;
 			}
+			if ( j == b.length || b[j] != a[i] ) {
+				count++;
+			}
+		}
+		if ( count == a.length ) {
+			return a;
+		}
 
-			FastList<Long> ids = FastList.newInstance();
-			for ( long id : existingIds ) {
-				if ( !entityIdsSet.contains( id ) ) {
-					ids.add( id );
-				}
+		long[] result = new long[count];
+		int k = 0;
+		for ( int i = 0, j = 0; i < a.length; i++ ) {
+			while ( j < b.length && b[j] < a[i] ) {
+				j++;
+			}
+			if ( j == b.length || b[j] != a[i] ) {
+				result[k++] = a[i];
 			}
-			return toPrimitiveLongArray( ids );
-		} finally {
-			FastSet.recycle(entityIdsSet);
 		}
+		return result;
 	}
 
-	@SuppressWarnings("boxing")
-	public static long[] toPrimitiveLongArray( Collection<Long> ids )
-	{
-		long[] result = new long[ids.size()];
-		int i = 0;
-		for ( Long id : ids ) {
-			result[i++] = id;
+	//next index in b holding a different value
+	private static int skip( long[] b, int j ) {
+		long value = b[j++];
+		while ( j < b.length && b[j] == value ) {
+			j++;
 		}
-		return result;
+		return j;
 	}
 
-	@SuppressWarnings("boxing")
-	public static long[] toPrimitiveLongArray( FastSet<Long> ids ) {
-		long[] result = new long[ids.size()];
-		int i = 0;
-		for (FastSet.Record r = ids.head(), end = ids.tail(); (r = r.getNext()) != end;) {
-			result[i++] = ids.valueOf(r);
+	static boolean isSorted( long[] ids ) {
+		for ( int i = 1; i < ids.length; i++ ) {
+			if ( ids[i - 1] > ids[i] ) {
+				return false;
+			}
 		}
-		return result;
+		return true;
+	}
+
+	/**
+	 * Returns <code>ids</code> if it is sorted, otherwise a sorted copy.
+	 * Posting lists written in the legacy format may be unsorted.
+	 */
+	static long[] sorted( long[] ids ) {
+		if ( isSorted( ids ) ) {
+			return ids;
+		}
+		long[] copy = Arrays.copyOf( ids, ids.length );
+		Arrays.sort( copy );
+		return copy;
+	}
+
+	/**
+	 * Returns up to <code>limit</code> of the sorted <code>ids</code> greater
+	 * than <code>afterId</code>, skipping the first <code>offset</code> of those.
+	 */
+	static long[] page( long[] ids, long afterId, int offset, int limit ) {
+		int start = Arrays.binarySearch( ids, afterId );
+		start = start < 0 ? -start - 1 : start + 1;
+		start = (int) Math.min( (long) start + offset, ids.length );
+		int end = (int) Math.min( (long) start + limit, ids.length );
+		return start == 0 && end == ids.length ? ids : Arrays.copyOfRange( ids, start, end );
 	}
 
 	@SuppressWarnings("boxing")
-	public static long[] toPrimitiveLongArray( FastList<Long> ids ) {
+	public static long[] toPrimitiveLongArray( Collection<Long> ids )
+	{
 		long[] result = new long[ids.size()];
 		int i = 0;
-		for (FastList.Node<Long> n = ids.head(), end = ids.tail(); (n = n.getNext()) != end;) {
-			result[i++] = n.getValue();
+		for ( Long id : ids ) {
+			result[i++] = id;
 		}
 		return result;
 	}
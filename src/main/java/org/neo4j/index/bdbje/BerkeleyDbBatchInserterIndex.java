@@ -19,14 +19,18 @@
  */
 package org.neo4j.index.bdbje;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.neo4j.graphdb.index.BatchInserterIndex;
 import org.neo4j.graphdb.index.IndexHits;
@@ -34,6 +38,7 @@ import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.impl.batchinsert.BatchInserter;
 import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
 
+import com.sleepycat.je.CheckpointConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
@@ -56,40 +61,90 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	
 	private final IndexIdentifier		identifier;
 	
+	private final BerkeleyDbBatchInserterIndexProvider	provider;
+	
+	private final boolean				typedKeys;
+	
+	// the reverse index, when the index is configured with one
+	private final boolean				reverseIndex;
+	
+	private Database					entities;
+	
+	// ids are grouped per value before being written, see BulkLoader
+	private final Map<String, BulkLoader>	loaders	= new HashMap<String, BulkLoader>();
+	
+	// keys given a capacity by setCacheCapacity
+	private final Map<String, ValueCache>	caches	= new HashMap<String, ValueCache>();
+	
+	private final boolean				bulkLoad;
+	
+	private final int					bulkBufferSize;
+	
+	private final int					bulkThreads;
+	
+	private final boolean				deferredWrite;
+	
+	private final int					cachePercent;
+	
 	
 	BerkeleyDbBatchInserterIndex( BerkeleyDbBatchInserterIndexProvider provider, BatchInserter inserter,
-		IndexIdentifier identifier, Map<String, String> config )
+		IndexIdentifier identifier, Map<String, String> stored, Map<String, String> config )
 		{
-		System.err.println( this.getClass() + " initing with id=" + identifier + " config=" + config.get( "provider" ) );
+		System.err.println( this.getClass() + " initing with id=" + identifier + " config=" + stored.get( "provider" ) );
 		
 		this.identifier = identifier;
+		this.provider = provider;
 		String dbStoreDir = ( (BatchInserterImpl)inserter ).getStore();
 		storeDir =
-				BerkeleyDbDataSource.getStoreDir( dbStoreDir + "/index/bdb/" + identifier.itemClass.getSimpleName() + "/"
-						+ identifier.indexName );
+				BerkeleyDbDataSource.getStoreDir( BerkeleyDbDataSource.indexDir( dbStoreDir, identifier ) );
 		// this.createdNow = storeDir.other();
+		// written the way the online index reads, which goes by the stored config
+		typedKeys = BerkeleyDbIndexImplementation.KEY_ENCODING_TYPED.equals(
+			stored.get( BerkeleyDbIndexImplementation.KEY_KEY_ENCODING ) );
+		reverseIndex = Boolean.parseBoolean( stored.get( BerkeleyDbIndexImplementation.KEY_REVERSE_INDEX ) );
+		bulkLoad = Boolean.parseBoolean( config.get( BerkeleyDbIndexImplementation.KEY_BULK_LOAD ) );
+		String bufferSize = config.get( BerkeleyDbIndexImplementation.KEY_BULK_BUFFER_SIZE );
+		bulkBufferSize =
+				(int)Math.min( Integer.MAX_VALUE, bufferSize != null ? PostingCache.parseSize( bufferSize ) : 64L << 20 );
+		String threads = config.get( BerkeleyDbIndexImplementation.KEY_BULK_THREADS );
+		bulkThreads =
+				threads != null ? Math.max( 1, Integer.parseInt( threads.trim() ) ) : Runtime.getRuntime().availableProcessors();
+		String deferred = config.get( BerkeleyDbIndexImplementation.KEY_BATCH_DEFERRED_WRITE );
+		deferredWrite = deferred == null || Boolean.parseBoolean( deferred );
+		String percent = config.get( BerkeleyDbIndexImplementation.KEY_BATCH_CACHE_PERCENT );
+		cachePercent = percent != null ? Math.max( 1, Math.min( 90, Integer.parseInt( percent.trim() ) ) ) : 50;
 		}
 	
 	
+	private byte[] indexKey( String key, Object value ) {
+		// the same keys as the online index reads with
+		return typedKeys ? KeyCodec.encode( value ) : BerkeleyDbDataSource.indexKey( key, value );
+	}
+	
+	
 	@Override
 	public void add( long entityId, Map<String, Object> properties ) {
 		try {
 			for ( Map.Entry<String, Object> entry : properties.entrySet() ) {
 				String key = entry.getKey();
-				Database db = dbs.get( key );
-				if ( null == db ) {
-					db = createDB( key );
-					dbs.put( key, db );
+				byte[] indexKey = indexKey( key, entry.getValue() );
+				database( key );
+				if ( reverseIndex ) {
+					// the same records as BerkeleyDbDataSource.updateEntities
+					entities().putNoDupData( null, new DatabaseEntry( BerkeleyDbDataSource.entityKey( entityId, key ) ),
+						new DatabaseEntry( indexKey ) );
 				}
-				String value = entry.getValue().toString();
-				DatabaseEntry valueEntry = new DatabaseEntry( value.getBytes( "UTF-8" ) );
-				ByteArrayOutputStream baus = new ByteArrayOutputStream();
-				DataOutputStream dos = new DataOutputStream( baus );
-				dos.writeLong( entityId );
-				dos.flush();
-				db.put( null, valueEntry, new DatabaseEntry( baus.toByteArray() ) );
-				
-				dos.close();
+				ValueCache cache = caches.get( key );
+				if ( null != cache ) {
+					cache.add( indexKey, entityId );
+					continue;
+				}
+				BulkLoader loader = loaders.get( key );
+				if ( null == loader ) {
+					loader = new BulkLoader( new File( storeDir.first() ), bulkBufferSize );
+					loaders.put( key, loader );
+				}
+				loader.add( indexKey, entityId );
 			}
 		} catch ( Exception e ) {
 			throw new RuntimeException( e );
@@ -97,19 +152,31 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	}
 	
 	
+	private Database database( String key ) {
+		Database db = dbs.get( key );
+		if ( null == db ) {
+			db = createDB( key );
+			dbs.put( key, db );
+		}
+		return db;
+	}
+	
+	
 	public Database createDB( String key ) {
 		try {
-			EnvironmentConfig environmentConfig = new EnvironmentConfig();
-			environmentConfig.setAllowCreate( true );
-			environmentConfig.setDurability( Durability.COMMIT_WRITE_NO_SYNC );
-			String dir = BerkeleyDbDataSource.getStoreDir( storeDir.first() + "/" + key ).first();
-			System.err.println( "bdb env openning: " + dir );
-			Environment environment = new Environment( new File( dir ), environmentConfig );
-			environmentConfig.setCachePercent( 10 );
-			environmentConfig.setTransactional( false );
+			Environment environment = openEnvironment( key );
+			String name = databaseName( key );
+			// statistics and the saved bloom filter would miss what is inserted
+			// now, they are rebuilt from the data when next needed
+			String statisticsName = name + KeyStatistics.DATABASE_SUFFIX;
+			if ( environment.getDatabaseNames().contains( statisticsName ) ) {
+				environment.removeDatabase( null, statisticsName );
+			}
 			DatabaseConfig databaseConfig = new DatabaseConfig();
 			databaseConfig.setAllowCreate( true );
-			Database db = environment.openDatabase( null, key, databaseConfig );
+			// made durable by the sync in flush()
+			databaseConfig.setDeferredWrite( deferredWrite );
+			Database db = environment.openDatabase( null, name, databaseConfig );
 			// FIXME: when are these closed? esp. the environment
 			return db;
 		} catch ( Exception e ) {
@@ -118,6 +185,59 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	}
 	
 	
+	/**
+	 * @return the reverse index, laid out like
+	 *         {@link BerkeleyDbDataSource#entitiesDatabase(IndexIdentifier)}
+	 *         lays it out for a store of an environment per key.
+	 */
+	private Database entities() {
+		if ( null == entities ) {
+			DatabaseConfig databaseConfig = new DatabaseConfig();
+			databaseConfig.setAllowCreate( true );
+			databaseConfig.setSortedDuplicates( true );
+			databaseConfig.setDeferredWrite( deferredWrite );
+			entities =
+					openEnvironment( BerkeleyDbDataSource.ENTITIES_KEY ).openDatabase( null,
+						databaseName( BerkeleyDbDataSource.ENTITIES_KEY ), databaseConfig );
+		}
+		return entities;
+	}
+	
+	
+	// named like BerkeleyDbDataSource names them, in the shared environment or one of the key
+	private String databaseName( String key ) {
+		return provider.sharedMode ? BerkeleyDbDataSource.databaseName( identifier, key ) : key;
+	}
+	
+	
+	private Environment openEnvironment( String key ) {
+		if ( provider.sharedMode ) {
+			return provider.sharedEnvironment( environmentConfig() );
+		}
+		String dir = BerkeleyDbDataSource.getStoreDir( storeDir.first() + "/" + key ).first();
+		System.err.println( "bdb env openning: " + dir );
+		return new Environment( new File( dir ), environmentConfig() );
+	}
+	
+	
+	private EnvironmentConfig environmentConfig() {
+		EnvironmentConfig environmentConfig = new EnvironmentConfig();
+		environmentConfig.setAllowCreate( true );
+		environmentConfig.setTransactional( false );
+		environmentConfig.setDurability( Durability.COMMIT_WRITE_NO_SYNC );
+		// the environments of all keys share one cache
+		environmentConfig.setSharedCache( true );
+		environmentConfig.setCachePercent( cachePercent );
+		if ( deferredWrite ) {
+			// nothing is durable before flush() anyway, so there is no
+			// point in checkpointing or cleaning a log that only grows
+			environmentConfig.setConfigParam( EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false" );
+			environmentConfig.setConfigParam( EnvironmentConfig.ENV_RUN_CLEANER, "false" );
+		}
+		return environmentConfig;
+	}
+	
+	
 	
 	@Override
 	public void updateOrAdd( long entityId, Map<String, Object> properties ) {
@@ -139,8 +259,20 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 		}
 		DatabaseEntry result = new DatabaseEntry();
 		try {
+			ValueCache cache = caches.get( key );
+			if ( null != cache ) {
+				for ( long id : cache.get( indexKey( key, value ) ) ) {
+					resultList.add( id );
+				}
+				return new IndexHitsImpl<Long>( resultList, resultList.size() );
+			}
+			BulkLoader loader = loaders.get( key );
+			if ( !bulkLoad && null != loader ) {
+				// what was added is seen, at the price of a load of this key
+				loader.load( BulkLoader.into( db ) );
+			}
 			OperationStatus status =
-					db.get( null, new DatabaseEntry( value.toString().getBytes( "UTF-8" ) ), result, LockMode.READ_UNCOMMITTED );
+					db.get( null, new DatabaseEntry( indexKey( key, value ) ), result, LockMode.READ_UNCOMMITTED );
 			if ( status == OperationStatus.NOTFOUND ) {
 				return new IndexHitsImpl<Long>( resultList, 0 );
 			}
@@ -148,8 +280,9 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 			if ( null == data ) {
 				return new IndexHitsImpl<Long>( resultList, 0 );
 			}
-			DataInputStream dis = new DataInputStream( new ByteArrayInputStream( data ) );
-			resultList.add( dis.readLong() );
+			for ( long id : Postings.decode( data ) ) {
+				resultList.add( id );
+			}
 		} catch ( Exception e ) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -160,11 +293,20 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	
 	public void shutdown() {
 		System.err.println( "shutting down batch inserter index: " + identifier );
+		flush();
 		for ( Database db : dbs.values() ) {
 			if ( db.getEnvironment().isValid() ) {
 				System.err.println( "bdb environ closing:" + db.getEnvironment().getHome() );
 				db.close();
-				db.getEnvironment().close();
+				if ( !provider.sharedMode ) {
+					db.getEnvironment().close();
+				}
+			}
+		}
+		if ( null != entities ) {
+			entities.close();
+			if ( !provider.sharedMode ) {
+				entities.getEnvironment().close();
 			}
 		}
 	}
@@ -172,7 +314,68 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	
 	@Override
 	public void flush() {
-		// writerModified = true;
+		load();
+		sync();
+	}
+	
+	
+	private void load() {
+		if ( dbs.isEmpty() ) {
+			return;
+		}
+		// keys live in databases of their own, so they load in parallel
+		ExecutorService executor = Executors.newFixedThreadPool( Math.min( bulkThreads, dbs.size() ) );
+		try {
+			List<Future<Object>> loads = new ArrayList<Future<Object>>();
+			for ( Map.Entry<String, Database> entry : dbs.entrySet() ) {
+				final Database db = entry.getValue();
+				final BulkLoader loader = loaders.get( entry.getKey() );
+				final ValueCache cache = caches.get( entry.getKey() );
+				loads.add( executor.submit( new Callable<Object>() {
+					
+					@Override
+					public Object call() throws Exception {
+						if ( null != loader ) {
+							loader.load( BulkLoader.into( db ) );
+						}
+						if ( null != cache ) {
+							cache.flush();
+						}
+						return null;
+					}
+				} ) );
+			}
+			for ( Future<Object> load : loads ) {
+				load.get();
+			}
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException( e.getCause() );
+		} catch ( InterruptedException e ) {
+			throw new RuntimeException( e );
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	
+	private void sync() {
+		List<Database> written = new ArrayList<Database>( dbs.values() );
+		if ( null != entities ) {
+			written.add( entities );
+		}
+		Set<Environment> environments = new HashSet<Environment>();
+		for ( Database db : written ) {
+			if ( deferredWrite ) {
+				db.sync();
+			}
+			environments.add( db.getEnvironment() );
+		}
+		CheckpointConfig force = new CheckpointConfig();
+		force.setForce( true );
+		// once for the shared environment
+		for ( Environment environment : environments ) {
+			environment.checkpoint( force );
+		}
 	}
 	
 	
@@ -192,8 +395,22 @@ public class BerkeleyDbBatchInserterIndex implements BatchInserterIndex {
 	
 	@Override
 	public void setCacheCapacity( String key, int size ) {
-		// TODO Auto-generated method stub
-		
+		ValueCache cache = caches.get( key );
+		if ( null != cache ) {
+			cache.setCapacity( size );
+			return;
+		}
+		try {
+			Database db = database( key );
+			BulkLoader loader = loaders.remove( key );
+			if ( null != loader ) {
+				// what was added before goes in first, the cache reads it back
+				loader.load( BulkLoader.into( db ) );
+			}
+			caches.put( key, new ValueCache( db, size, BulkLoader.isEmpty( db ) ) );
+		} catch ( Exception e ) {
+			throw new RuntimeException( e );
+		}
 	}
 	
 }
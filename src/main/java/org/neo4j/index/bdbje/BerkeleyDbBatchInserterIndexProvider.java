@@ -19,6 +19,8 @@
  */
 package org.neo4j.index.bdbje;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,6 +35,9 @@ import org.neo4j.kernel.impl.batchinsert.BatchInserter;
 import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
 import org.neo4j.kernel.impl.index.IndexStore;
 
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
 
 
 /**
@@ -46,39 +51,74 @@ public class BerkeleyDbBatchInserterIndexProvider implements BatchInserterIndexP
 	private final Map<IndexIdentifier, BerkeleyDbBatchInserterIndex>	indexes	=
 			new HashMap<IndexIdentifier, BerkeleyDbBatchInserterIndex>();
 	final IndexStore													indexStore;
+	// whether indexes are written as named databases of one shared environment
+	final boolean														sharedMode;
+	private final String												storeDir;
+	private Environment													sharedEnvironment;
 	
 	
+	/**
+	 * Writes into the shared environment if the store has one, see
+	 * {@link BerkeleyDbDataSource.Configuration#shared_environment}.
+	 */
 	public BerkeleyDbBatchInserterIndexProvider( final BatchInserter inserter ) {
+		this( inserter, Collections.<String, String>emptyMap() );
+	}
+	
+	
+	/**
+	 * @param config the config the store is opened with, of which
+	 *            <code>bdb_shared_environment</code> selects the shared
+	 *            environment, as it does for the online index.
+	 */
+	public BerkeleyDbBatchInserterIndexProvider( final BatchInserter inserter, Map<String, String> config ) {
 		this.inserter = inserter;
 		indexStore = ( (BatchInserterImpl)inserter ).getIndexStore();
-		
+		storeDir = ( (BatchInserterImpl)inserter ).getStore();
+		sharedMode =
+				Boolean.parseBoolean( config.get( BerkeleyDbDataSource.Configuration.shared_environment.name() ) )
+						|| new File( sharedDir() ).exists();
+	}
+	
+	
+	private String sharedDir() {
+		return storeDir + "/index/bdb/" + BerkeleyDbDataSource.SHARED_DIR;
+	}
+	
+	
+	/**
+	 * @return the environment of all indexes in shared mode, opened with the
+	 *         config of the index asking first.
+	 */
+	synchronized Environment sharedEnvironment( EnvironmentConfig config ) {
+		if ( null == sharedEnvironment ) {
+			sharedEnvironment = new Environment( new File( BerkeleyDbDataSource.getStoreDir( sharedDir() ).first() ), config );
+		}
+		return sharedEnvironment;
 	}
 	
 	
 	@Override
 	public BatchInserterIndex nodeIndex( String indexName, Map<String, String> config ) {
-		config( Node.class, indexName, config );
 		return index( new IndexIdentifier( Node.class, indexName ), config );
 	}
 	
 	
+	/**
+	 * Stores the config of a new index, with the defaults an online created
+	 * index gets, and returns the config the index was created with.
+	 */
 	private Map<String, String> config( Class<? extends PropertyContainer> cls, String indexName, Map<String, String> config ) {
-		// TODO Doesn't look right
-		if ( config != null ) {
-			config =
-					MapUtil.stringMap( new HashMap<String, String>( config ), "provider",
-						BerkeleyDbIndexImplementation.SERVICE_NAME );
-			indexStore.setIfNecessary( cls, indexName, config );
-			return config;
-		} else {
-			return indexStore.get( cls, indexName );
-		}
+		Map<String, String> created =
+				MapUtil.stringMap( new HashMap<String, String>( config != null ? config : BerkeleyDbIndexImplementation.DEFAULT_CONFIG ),
+					"provider", BerkeleyDbIndexImplementation.SERVICE_NAME );
+		indexStore.setIfNecessary( cls, indexName, BerkeleyDbIndexImplementation.withDefaults( created ) );
+		return indexStore.get( cls, indexName );
 	}
 	
 	
 	@Override
 	public BatchInserterIndex relationshipIndex( String indexName, Map<String, String> config ) {
-		config( Relationship.class, indexName, config );
 		return index( new IndexIdentifier( Relationship.class, indexName ), config );
 	}
 	
@@ -88,7 +128,10 @@ public class BerkeleyDbBatchInserterIndexProvider implements BatchInserterIndexP
 		// single-threaded batch inserter
 		BerkeleyDbBatchInserterIndex index = indexes.get( identifier );
 		if ( index == null ) {
-			index = new BerkeleyDbBatchInserterIndex( this, inserter, identifier, config );
+			Map<String, String> stored = config( identifier.itemClass, identifier.indexName, config );
+			// batch options are not part of the index, they apply to this load
+			index =
+					new BerkeleyDbBatchInserterIndex( this, inserter, identifier, stored, config != null ? config : stored );
 			indexes.put( identifier, index );
 		}
 		return index;
@@ -101,5 +144,9 @@ public class BerkeleyDbBatchInserterIndexProvider implements BatchInserterIndexP
 		for ( BerkeleyDbBatchInserterIndex index : indexes.values() ) {
 			index.shutdown();
 		}
+		if ( null != sharedEnvironment ) {
+			sharedEnvironment.close();
+			sharedEnvironment = null;
+		}
 	}
 }
@@ -33,9 +33,13 @@ import org.neo4j.kernel.impl.util.IoPrimitiveUtils;
 
 abstract class BerkeleyDbCommand extends XaCommand
 {
-	private static final byte ADD_COMMAND = (byte) 1;
-	private static final byte REMOVE_COMMAND = (byte) 2;
+	// commands written before values were encoded keys, their value is a char[]
+	private static final byte LEGACY_ADD_COMMAND = (byte) 1;
+	private static final byte LEGACY_REMOVE_COMMAND = (byte) 2;
 	private static final byte CREATE_COMMAND = (byte) 3;
+	private static final byte ADD_COMMAND = (byte) 4;
+	private static final byte REMOVE_COMMAND = (byte) 5;
+	private static final byte DELETE_COMMAND = (byte) 6;
 
 	static final byte NODE = (byte) 1;
 	static final byte RELATIONSHIP = (byte) 2;
@@ -43,10 +47,11 @@ abstract class BerkeleyDbCommand extends XaCommand
 	final IndexIdentifier _indexId;
 	final long[] _entityIds;
 	final String _key;
-	final String _value;
+	// the encoded key of the value in the key database
+	final byte[] _value;
 	final byte _commandValue;
 
-	BerkeleyDbCommand( byte commandValue, IndexIdentifier indexId, long[] entityIds, String key, String value ) {
+	BerkeleyDbCommand( byte commandValue, IndexIdentifier indexId, long[] entityIds, String key, byte[] value ) {
 		_commandValue = commandValue;
 		_indexId = indexId;
 		_entityIds = entityIds;
@@ -80,26 +85,25 @@ abstract class BerkeleyDbCommand extends XaCommand
 
 		char[] key = _key.toCharArray();
 		buffer.putInt( key.length );
-		char[] value = _value.toCharArray();
 
-		buffer.putInt( value.length );
+		buffer.putInt( _value.length );
 		buffer.put( indexName );
 		for ( long id : _entityIds ) {
 			buffer.putLong( id );
 		}
 
 		buffer.put( key );
-		buffer.put( value );
+		buffer.put( _value );
 	}
 
 	static class AddCommand extends BerkeleyDbCommand {
-		AddCommand( IndexIdentifier indexId, long[] entityIds, String key, String value ) {
+		AddCommand( IndexIdentifier indexId, long[] entityIds, String key, byte[] value ) {
 			super( ADD_COMMAND, indexId, entityIds, key, value );
 		}
 	}
 
 	static class RemoveCommand extends BerkeleyDbCommand {
-		RemoveCommand( IndexIdentifier indexId, long[] entityIds, String key, String value ) {
+		RemoveCommand( IndexIdentifier indexId, long[] entityIds, String key, byte[] value ) {
 			super( REMOVE_COMMAND, indexId, entityIds, key, value );
 		}
 	}
@@ -108,10 +112,11 @@ abstract class BerkeleyDbCommand extends XaCommand
 		// static final IndexIdentifier FAKE_IDENTIFIER = new IndexIdentifier( null, null );
 
 		static final long[] EMPTY_IDS = new long[0];
+		static final byte[] EMPTY_VALUE = new byte[0];
 		final Map<String, String> _config;
 
 		CreateCommand( IndexIdentifier identifier, Map<String, String> config ) {
-			super( CREATE_COMMAND, identifier, EMPTY_IDS, "", "" );
+			super( CREATE_COMMAND, identifier, EMPTY_IDS, "", EMPTY_VALUE );
 			_config = config;
 		}
 
@@ -126,12 +131,35 @@ abstract class BerkeleyDbCommand extends XaCommand
 		}
 	}
 
+	static class DeleteCommand extends BerkeleyDbCommand {
+		DeleteCommand( IndexIdentifier identifier ) {
+			super( DELETE_COMMAND, identifier, CreateCommand.EMPTY_IDS, "", CreateCommand.EMPTY_VALUE );
+		}
+	}
+
 	protected static void writeLengthAndString( LogBuffer buffer, String string ) throws IOException {
 		char[] chars = string.toCharArray();
 		buffer.putInt( chars.length );
 		buffer.put( chars );
 	}
 
+	private static byte[] readBytes( ReadableByteChannel channel, ByteBuffer buffer, int length ) throws IOException {
+		byte[] result = new byte[length];
+		int pos = 0;
+		while ( pos < length ) {
+			buffer.clear();
+			buffer.limit( Math.min( length - pos, buffer.capacity() ) );
+			if ( channel.read( buffer ) != buffer.limit() ) {
+				return null;
+			}
+			buffer.flip();
+			int read = buffer.remaining();
+			buffer.get( result, pos, read );
+			pos += read;
+		}
+		return result;
+	}
+
 	static XaCommand readCommand(
 			ReadableByteChannel channel,
 			ByteBuffer buffer,
@@ -160,7 +188,7 @@ abstract class BerkeleyDbCommand extends XaCommand
 		int indexNameLength = buffer.getInt();
 		int numEntities = buffer.getInt();
 		int keyCharLength = buffer.getInt();
-		int valueCharLength = buffer.getInt();
+		int valueLength = buffer.getInt();
 
 		long[] entityIds = new long[numEntities];
 		for ( int i = 0; i < numEntities; i++ ) {
@@ -179,7 +207,16 @@ abstract class BerkeleyDbCommand extends XaCommand
 			return null;
 		}
 
-		String value = IoPrimitiveUtils.readString( channel, buffer, valueCharLength );
+		byte[] value;
+		if ( commandType == LEGACY_ADD_COMMAND || commandType == LEGACY_REMOVE_COMMAND )
+		{
+			String legacyValue = IoPrimitiveUtils.readString( channel, buffer, valueLength );
+			value = legacyValue != null ? BerkeleyDbDataSource.indexKey( key, legacyValue ) : null;
+		}
+		else
+		{
+			value = readBytes( channel, buffer, valueLength );
+		}
 		if ( value == null )
 		{
 			return null;
@@ -194,12 +231,16 @@ abstract class BerkeleyDbCommand extends XaCommand
 		IndexIdentifier identifier = new IndexIdentifier( itemsClass, indexName );
 		switch ( commandType )
 		{
+		case LEGACY_ADD_COMMAND:
 		case ADD_COMMAND:
 			return new AddCommand( identifier, entityIds, key, value );
+		case LEGACY_REMOVE_COMMAND:
 		case REMOVE_COMMAND:
 			return new RemoveCommand( identifier, entityIds, key, value );
 		case CREATE_COMMAND:
 			return new CreateCommand( identifier, creationConfig );
+		case DELETE_COMMAND:
+			return new DeleteCommand( identifier );
 		default:
 			return null;
 		}
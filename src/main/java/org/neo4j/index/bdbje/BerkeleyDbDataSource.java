@@ -23,6 +23,7 @@ import com.sleepycat.je.*;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.StoreConfig;
 
+import org.neo4j.graphdb.factory.Default;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
 import org.neo4j.helpers.Pair;
@@ -41,9 +42,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -60,25 +65,47 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 
 		//		public static final GraphDatabaseSetting.BooleanSetting ephemeral = AbstractGraphDatabase.Configuration.ephemeral;
 		public static final GraphDatabaseSetting.StringSetting store_dir = NeoStoreXaDataSource.Configuration.store_dir;
+
+		/**
+		 * When set, all index/key databases live as named databases in one
+		 * {@link Environment} under <code>index/bdb/shared</code> instead of one
+		 * environment per index/key directory.
+		 */
+		@Default( GraphDatabaseSetting.FALSE )
+		public static final GraphDatabaseSetting.BooleanSetting shared_environment =
+				new GraphDatabaseSetting.BooleanSetting( "bdb_shared_environment" );
 	}
 
 	public static final String									DEFAULT_NAME		= "bdb";
 	public static final byte[]									DEFAULT_BRANCH_ID	= UTF8.encode( "231564" );
+	static final String											SHARED_DIR			= "shared";
+	static final long[]											EMPTY_IDS			= new long[0];
+	// name of the reverse index of an index, in place of a key
+	static final String											ENTITIES_KEY		= "#entities";
 
 	private final XaContainer									xaContainer;
 	private final String										baseStorePath;
-	private final ReentrantReadWriteLock						lock				= new ReentrantReadWriteLock();
+	private static final int									LOCK_STRIPES		= 64;
+	// readers and committers of one index share a stripe, unrelated indexes rarely do
+	private final ReentrantReadWriteLock[]						locks				= new ReentrantReadWriteLock[LOCK_STRIPES];
 	final IndexStore											indexStore;
 	final IndexProviderStore									store;
 	private boolean												closed;
 
 	private final boolean isReadOnly;
 
-	private final Map<IndexIdentifier, Map<String, Database>>	databases			=
-			new HashMap<IndexIdentifier, Map<String, Database>>();
+	private final boolean sharedMode;
+	private Environment sharedEnvironment;
+
+	private final ConcurrentMap<IndexIdentifier, PostingCache> caches = new ConcurrentHashMap<IndexIdentifier, PostingCache>();
+	// values claimed by putIfAbsent, until the claiming transaction completes
+	final ValueLocks valueLocks = new ValueLocks();
+	// merges the commands of concurrently committing transactions
+	final GroupCommit groupCommit = new GroupCommit( this );
+	private final ConcurrentMap<IndexIdentifier, Database> entityDatabases = new ConcurrentHashMap<IndexIdentifier, Database>();
 
-	private final Map<IndexIdentifier, Map<String, EntityStore>>entityStores		=
-			new HashMap<IndexIdentifier, Map<String, EntityStore>>();
+	private final ConcurrentMap<IndexIdentifier, ConcurrentMap<String, DatabaseHandle>> handles =
+			new ConcurrentHashMap<IndexIdentifier, ConcurrentMap<String, DatabaseHandle>>();
 
 
 	/**
@@ -91,8 +118,12 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 		baseStorePath = getStoreDir( storeDir ).first();
 
 		this.indexStore = indexStore;
+		for ( int i = 0; i < locks.length; i++ ) {
+			locks[i] = new ReentrantReadWriteLock();
+		}
 		store = newIndexStore( storeDir );
 		isReadOnly = config.getBoolean( Configuration.read_only );
+		sharedMode = config.getBoolean( Configuration.shared_environment );
 
 		if ( !isReadOnly ) {
 			XaCommandFactory cf = new BerkeleyDbCommandFactory();
@@ -122,6 +153,11 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 		return isReadOnly;
 	}
 
+	public boolean isSharedEnvironment()
+	{
+		return sharedMode;
+	}
+
 
 	static Pair<String, Boolean> getStoreDir( String dbStoreDir ) {
 		File dir = new File( dbStoreDir );
@@ -139,6 +175,19 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 	}
 
 
+	static void deleteFileOrDirectory( File file ) {
+		if ( !file.exists() ) {
+			return;
+		}
+		if ( file.isDirectory() ) {
+			for ( File child : file.listFiles() ) {
+				deleteFileOrDirectory( child );
+			}
+		}
+		file.delete();
+	}
+
+
 	static IndexProviderStore newIndexStore( String dbStoreDir ) {
 		// FIXME: is this really correct? doesn't seem safe...
 		//return new IndexProviderStore( new File( dbStoreDir, "store.db" ), CommonFactories.defaultFileSystemAbstraction() );
@@ -159,15 +208,24 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 		store.close();
 		try {
 			// berkeleyDb.close();
-			for ( Map<String, Database> dbs : databases.values() ) {
-				for ( Database db : dbs.values() ) {
-					if ( db.getEnvironment().isValid() ) {
-						//System.err.println( "bdb environ closing:" + db.getEnvironment().getHome() );
-						db.close();
+			for ( DatabaseHandle handle : getHandles() ) {
+				handle.close( !sharedMode );
+			}
+			for ( Database db : entityDatabases.values() ) {
+				if ( db.getEnvironment().isValid() ) {
+					db.close();
+					if ( !sharedMode ) {
 						db.getEnvironment().close();
 					}
 				}
 			}
+			entityDatabases.clear();
+			synchronized ( this ) {
+				if ( sharedEnvironment != null && sharedEnvironment.isValid() ) {
+					sharedEnvironment.close();
+				}
+				sharedEnvironment = null;
+			}
 		} catch ( Exception e ) {
 			e.printStackTrace();
 		}
@@ -231,23 +289,57 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 	}
 
 
-	void getReadLock() {
-		lock.readLock().lock();
+	private static int stripe( IndexIdentifier identifier ) {
+		int h = identifier.hashCode();
+		h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+		h ^= ( h >>> 7 ) ^ ( h >>> 4 );
+		return h & ( LOCK_STRIPES - 1 );
+	}
+
+
+	void getReadLock( IndexIdentifier identifier ) {
+		locks[stripe( identifier )].readLock().lock();
 	}
 
 
-	void releaseReadLock() {
-		lock.readLock().unlock();
+	void releaseReadLock( IndexIdentifier identifier ) {
+		locks[stripe( identifier )].readLock().unlock();
 	}
 
 
-	void getWriteLock() {
-		lock.writeLock().lock();
+	/**
+	 * Write locks the stripes of all given indexes, always in stripe order so
+	 * that concurrent committers can't deadlock.
+	 */
+	void getWriteLock( Collection<IndexIdentifier> identifiers ) {
+		for ( int stripe : stripes( identifiers ) ) {
+			locks[stripe].writeLock().lock();
+		}
 	}
 
 
-	void releaseWriteLock() {
-		lock.writeLock().unlock();
+	void releaseWriteLock( Collection<IndexIdentifier> identifiers ) {
+		int[] stripes = stripes( identifiers );
+		for ( int i = stripes.length - 1; i >= 0; i-- ) {
+			locks[stripes[i]].writeLock().unlock();
+		}
+	}
+
+
+	private static int[] stripes( Collection<IndexIdentifier> identifiers ) {
+		int[] stripes = new int[identifiers.size()];
+		int i = 0;
+		for ( IndexIdentifier identifier : identifiers ) {
+			stripes[i++] = stripe( identifier );
+		}
+		Arrays.sort( stripes );
+		int count = 0;
+		for ( int stripe : stripes ) {
+			if ( count == 0 || stripes[count - 1] != stripe ) {
+				stripes[count++] = stripe;
+			}
+		}
+		return count == stripes.length ? stripes : Arrays.copyOf( stripes, count );
 	}
 
 
@@ -274,6 +366,9 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 	}
 
 
+	/**
+	 * The key of a value in indexes using {@link BerkeleyDbIndexImplementation#KEY_ENCODING_STRING}.
+	 */
 	public static byte[] indexKey( String key, Object value ) {
 		if (value instanceof byte[]) {
 			return (byte[]) value;
@@ -284,75 +379,486 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 		return String.valueOf( "" + value ).getBytes();
 	}
 
-	//get key-value database
-	public Database getDatabase( IndexIdentifier identifier, Object key ) {
-		Map<String, Database> db = databases.get( identifier );
-		if ( null == db ) {
-			db = new HashMap<String, Database>();
-			databases.put( identifier, db );
+	/**
+	 * Returns the handle of an (index, key), creating it if needed. Callers
+	 * on a hot path should keep the handle instead of looking it up again.
+	 */
+	DatabaseHandle getHandle( IndexIdentifier identifier, String key ) {
+		ConcurrentMap<String, DatabaseHandle> keys = handles.get( identifier );
+		if ( null == keys ) {
+			keys = new ConcurrentHashMap<String, DatabaseHandle>();
+			ConcurrentMap<String, DatabaseHandle> existing = handles.putIfAbsent( identifier, keys );
+			if ( null != existing ) {
+				keys = existing;
+			}
 		}
-		Database result = db.get( key.toString() );
-		if ( null == result ) {
-			result = createDB( identifier, key );
-			db.put( key.toString(), result );
+		DatabaseHandle handle = keys.get( key );
+		if ( null == handle ) {
+			handle = new DatabaseHandle( this, identifier, key );
+			DatabaseHandle existing = keys.putIfAbsent( key, handle );
+			if ( null != existing ) {
+				handle = existing;
+			}
 		}
+		return handle;
+	}
 
-		return result;
+	//get key-value database
+	public Database getDatabase( IndexIdentifier identifier, Object key ) {
+		return getHandle( identifier, key.toString() ).database();
 	}
 
 	//get entity store
 	public EntityStore getEntityStore( IndexIdentifier identifier, Object key ) {
-		Map<String, EntityStore> stores = entityStores.get( identifier );
-		if ( null == stores ) {
-			stores = new HashMap<String, EntityStore>();
-			entityStores.put( identifier, stores );
+		return getHandle( identifier, key.toString() ).entityStore();
+	}
+
+	static boolean isDuplicates( Database db ) {
+		return db.getConfig().getSortedDuplicates();
+	}
+
+	void addEntry( DatabaseHandle handle, long[] entityIds, byte[] indexKey ) {
+		updateEntry( handle, entityIds, EMPTY_IDS, indexKey );
+	}
+
+
+	void removeEntry( DatabaseHandle handle, long[] entityIds, byte[] indexKey ) {
+		updateEntry( handle, EMPTY_IDS, entityIds, indexKey );
+	}
+
+
+	/**
+	 * Adds and removes entity ids of one (key, value) with a single read and
+	 * write of its posting list.
+	 */
+	void updateEntry( DatabaseHandle handle, long[] addedIds, long[] removedIds, byte[] indexKey ) {
+		Database db = handle.database();
+		KeyStatistics statistics = handle.statistics();
+		if ( addedIds.length > 0 ) {
+			handle.addValue( indexKey );
+		}
+		if ( handle.reverseIndex ) {
+			updateEntities( handle, addedIds, removedIds, indexKey );
+		}
+		if ( handle.isDuplicates() ) {
+			long before = getDuplicateCount( handle, indexKey );
+			long after = before;
+			DatabaseEntry keyEntry = new DatabaseEntry( indexKey );
+			for ( long id : addedIds ) {
+				if ( db.putNoDupData( null, keyEntry, new DatabaseEntry( ArrayUtil.toBytes( id ) ) ) == OperationStatus.SUCCESS ) {
+					after++;
+				}
+			}
+			if ( removedIds.length > 0 ) {
+				after -= removeDuplicates( db, indexKey, removedIds );
+			}
+			if ( after != before ) {
+				if ( handle.cache != null ) {
+					handle.cache.invalidate( handle, indexKey );
+				}
+				DatabaseEntry countKey = new DatabaseEntry( KeyStatistics.valueKey( indexKey ) );
+				if ( after == 0 ) {
+					handle.statisticsDatabase().delete( null, countKey );
+				} else {
+					handle.statisticsDatabase().put( null, countKey, new DatabaseEntry( ArrayUtil.toBytes( after ) ) );
+				}
+				statistics.update( ( after > 0 ? 1 : 0 ) - ( before > 0 ? 1 : 0 ), after - before );
+			}
+			return;
+		}
+		long[] existingIds = readIds( handle, indexKey );
+		long[] ids = ArrayUtil.exclude( ArrayUtil.include( existingIds, addedIds ), removedIds );
+		if ( ids == existingIds ) {
+			return;
+		}
+		if ( handle.cache != null ) {
+			handle.cache.invalidate( handle, indexKey );
+		}
+		if ( ids.length == 0 ) {
+			db.delete( null, new DatabaseEntry( indexKey ) );
+		} else {
+			db.put( null, new DatabaseEntry( indexKey ), new DatabaseEntry( Postings.encode( ids ) ) );
+		}
+		statistics.update( ( ids.length > 0 ? 1 : 0 ) - ( existingIds.length > 0 ? 1 : 0 ), ids.length - existingIds.length );
+	}
+
+
+	/**
+	 * Records the values of entities in the reverse index of the index, one
+	 * sorted duplicate per (entity, key, value).
+	 */
+	private void updateEntities( DatabaseHandle handle, long[] addedIds, long[] removedIds, byte[] indexKey ) {
+		Database entities = entitiesDatabase( handle.identifier );
+		DatabaseEntry value = new DatabaseEntry( indexKey );
+		for ( long id : addedIds ) {
+			entities.putNoDupData( null, new DatabaseEntry( entityKey( id, handle.key ) ), value );
 		}
-		EntityStore result = stores.get( key.toString() );
-		if ( null == result ) {
-			result = createEntityStore( identifier, key );
-			stores.put( key.toString(), result );
+		if ( removedIds.length > 0 ) {
+			Cursor cursor = entities.openCursor( null, null );
+			try {
+				for ( long id : removedIds ) {
+					if ( cursor.getSearchBoth( new DatabaseEntry( entityKey( id, handle.key ) ), value, LockMode.DEFAULT ) == OperationStatus.SUCCESS ) {
+						cursor.delete();
+					}
+				}
+			} finally {
+				cursor.close();
+			}
 		}
+	}
+
+
+	/**
+	 * @return the index keys of the committed values of an entity by key,
+	 *         from the reverse index, for one key or all if <code>key</code>
+	 *         is <code>null</code>.
+	 */
+	Map<String, List<byte[]>> getEntityValues( IndexIdentifier identifier, long entityId, String key ) {
+		Map<String, List<byte[]>> result = new HashMap<String, List<byte[]>>();
+		byte[] prefix = ArrayUtil.toBytes( entityId );
+		DatabaseEntry keyEntry = new DatabaseEntry( key != null ? entityKey( entityId, key ) : prefix );
+		DatabaseEntry data = new DatabaseEntry();
+		Cursor cursor = entitiesDatabase( identifier ).openCursor( null, CursorConfig.READ_UNCOMMITTED );
+		try {
+			OperationStatus status = key != null
+					? cursor.getSearchKey( keyEntry, data, LockMode.READ_UNCOMMITTED )
+					: cursor.getSearchKeyRange( keyEntry, data, LockMode.READ_UNCOMMITTED );
+			while ( status == OperationStatus.SUCCESS ) {
+				byte[] found = keyEntry.getData();
+				if ( found.length < prefix.length || ArrayUtil.toLong( found, 0 ) != entityId ) {
+					break;
+				}
+				String foundKey = new String( found, prefix.length, found.length - prefix.length, KeyCodec.UTF_8 );
+				List<byte[]> values = result.get( foundKey );
+				if ( values == null ) {
+					values = new ArrayList<byte[]>();
+					result.put( foundKey, values );
+				}
+				values.add( data.getData() );
+				status = key != null
+						? cursor.getNextDup( keyEntry, data, LockMode.READ_UNCOMMITTED )
+						: cursor.getNext( keyEntry, data, LockMode.READ_UNCOMMITTED );
+			}
+		} finally {
+			cursor.close();
+		}
+		return result;
+	}
+
 
+	//entity id followed by the key, so that all keys of an entity are adjacent
+	static byte[] entityKey( long entityId, String key ) {
+		byte[] name = key.getBytes( KeyCodec.UTF_8 );
+		byte[] result = new byte[8 + name.length];
+		ArrayUtil.toBytes( entityId, result, 0 );
+		System.arraycopy( name, 0, result, 8, name.length );
 		return result;
 	}
 
-	public void addEntry( Database db, IndexIdentifier identifier, long[] entityIds, String key, Object value ) {
-		byte[] indexKey = indexKey( key, value );
-		long[] existingIds = getExistingIds( db, indexKey );
-		long[] ids = ArrayUtil.include( existingIds, entityIds );
+
+	/**
+	 * @return the reverse index of an index, kept like the database of a
+	 *         key named {@link #ENTITIES_KEY} but always with sorted
+	 *         duplicates.
+	 */
+	Database entitiesDatabase( IndexIdentifier identifier ) {
+		Database db = entityDatabases.get( identifier );
+		if ( null == db ) {
+			synchronized ( entityDatabases ) {
+				db = entityDatabases.get( identifier );
+				if ( null == db ) {
+					Environment environment = sharedMode ? sharedEnvironment() : keyEnvironment( identifier, ENTITIES_KEY, true );
+					DatabaseConfig config = new DatabaseConfig();
+					config.setAllowCreate( true );
+					config.setSortedDuplicates( true );
+					db = environment.openDatabase( null, sharedMode ? databaseName( identifier, ENTITIES_KEY ) : ENTITIES_KEY, config );
+					entityDatabases.put( identifier, db );
+				}
+			}
+		}
+		return db;
+	}
+
+
+	/**
+	 * Persists the statistics of a key if they have changed, once per key and
+	 * commit rather than with every value.
+	 */
+	void writeStatistics( DatabaseHandle handle ) {
+		byte[] record = handle.statistics().takeDirty();
+		if ( record != null ) {
+			handle.statisticsDatabase().put( null, new DatabaseEntry( KeyStatistics.SUMMARY_KEY ), new DatabaseEntry( record ) );
+		}
+	}
+
+
+	Database openStatistics( Database db ) {
+		DatabaseConfig config = new DatabaseConfig();
+		config.setAllowCreate( true );
+		return db.getEnvironment().openDatabase( null, db.getDatabaseName() + KeyStatistics.DATABASE_SUFFIX, config );
+	}
+
+
+	/**
+	 * Reads the persisted statistics of a key. Keys written before there were
+	 * statistics are counted once, which also writes the id counts of values
+	 * in the duplicates layout.
+	 */
+	KeyStatistics loadStatistics( DatabaseHandle handle ) {
+		Database statisticsDb = handle.statisticsDatabase();
+		DatabaseEntry record = new DatabaseEntry();
+		if ( statisticsDb.get( null, new DatabaseEntry( KeyStatistics.SUMMARY_KEY ), record, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS ) {
+			return KeyStatistics.read( record.getData() );
+		}
+
+		long values = 0;
+		long ids = 0;
+		boolean duplicates = handle.isDuplicates();
+		Cursor cursor = handle.database().openCursor( null, CursorConfig.READ_UNCOMMITTED );
 		try {
-			db.put( null, new DatabaseEntry( indexKey ), new DatabaseEntry( ArrayUtil.toBytes( ids ) ) );
-		} catch ( DatabaseException e ) {
-			e.printStackTrace();
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry data = new DatabaseEntry();
+			while ( cursor.getNextNoDup( key, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS ) {
+				long count = duplicates ? cursor.count() : Postings.size( data.getData() );
+				if ( duplicates ) {
+					statisticsDb.put( null, new DatabaseEntry( KeyStatistics.valueKey( key.getData() ) ),
+							new DatabaseEntry( ArrayUtil.toBytes( count ) ) );
+				}
+				values++;
+				ids += count;
+			}
+		} finally {
+			cursor.close();
 		}
+		statisticsDb.put( null, new DatabaseEntry( KeyStatistics.SUMMARY_KEY ), new DatabaseEntry( ArrayUtil.toBytes( values, ids ) ) );
+		return new KeyStatistics( values, ids );
 	}
 
 
-	private long[] getExistingIds( Database db, byte[] key ) {
+	/**
+	 * Reads the bloom filter a key was closed with, or builds it from the
+	 * values of the key database. A saved filter is deleted once read, so
+	 * that after a crash one missing later values is never used.
+	 */
+	BloomFilter loadBloomFilter( DatabaseHandle handle, long expectedValues ) {
+		Database statisticsDb = handle.statisticsDatabase();
+		// room for the number of values to double before the filter degrades
+		long values = Math.max( expectedValues, 2 * handle.statistics().values() );
+		DatabaseEntry key = new DatabaseEntry( KeyStatistics.BLOOM_FILTER_KEY );
+		DatabaseEntry record = new DatabaseEntry();
+		if ( statisticsDb.get( null, key, record, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS ) {
+			statisticsDb.delete( null, key );
+			if ( record.getSize() >= 8 * BloomFilter.words( values ) ) {
+				return BloomFilter.read( record.getData() );
+			}
+		}
+
+		BloomFilter filter = new BloomFilter( values );
+		Cursor cursor = handle.database().openCursor( null, CursorConfig.READ_UNCOMMITTED );
 		try {
-			DatabaseEntry value = new DatabaseEntry();
-			db.get( null, new DatabaseEntry( key ), value, LockMode.READ_UNCOMMITTED );
+			DatabaseEntry indexKey = new DatabaseEntry();
+			DatabaseEntry data = new DatabaseEntry();
+			data.setPartial( 0, 0, true );
+			while ( cursor.getNextNoDup( indexKey, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS ) {
+				filter.add( indexKey.getData() );
+			}
+		} finally {
+			cursor.close();
+		}
+		return filter;
+	}
 
-			return value.getData() != null ? ArrayUtil.toLongArray( value.getData() ) : new long[0];
-		} catch ( Exception e ) {
-			throw new RuntimeException( e );
+
+	void saveBloomFilter( DatabaseHandle handle, BloomFilter filter ) {
+		handle.statisticsDatabase().put( null, new DatabaseEntry( KeyStatistics.BLOOM_FILTER_KEY ), new DatabaseEntry( filter.toBytes() ) );
+	}
+
+
+	/**
+	 * @return the number of committed ids of a value, without reading them.
+	 */
+	long getCount( DatabaseHandle handle, byte[] indexKey ) {
+		if ( handle.isDuplicates() ) {
+			return getDuplicateCount( handle, indexKey );
+		}
+		DatabaseEntry keyEntry = new DatabaseEntry( indexKey );
+		DatabaseEntry value = new DatabaseEntry();
+		// the header of the delta format holds the count
+		value.setPartial( 0, 16, true );
+		if ( handle.database().get( null, keyEntry, value, LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS ) {
+			return 0;
 		}
+		if ( !Postings.isLegacy( value.getData() ) ) {
+			return Postings.size( value.getData() );
+		}
+		return getIds( handle, indexKey ).length;
 	}
 
 
-	public void removeEntry( Database db, IndexIdentifier identifier, long[] entityIds, String key, Object value ) {
-		byte[] indexKey = indexKey( key, value );
-		long[] existingIds = getExistingIds( db, indexKey );
-		long[] ids = ArrayUtil.exclude( existingIds, entityIds );
-		if ( ids.length == 0 ) {
-			db.removeSequence( null, new DatabaseEntry( BerkeleyDbDataSource.indexKey( key, value ) ) );
-		} else {
-			db.put( null, new DatabaseEntry( BerkeleyDbDataSource.indexKey( key, value ) ),
-					new DatabaseEntry( ArrayUtil.toBytes( ids ) ) );
+	private long getDuplicateCount( DatabaseHandle handle, byte[] indexKey ) {
+		// makes sure the counts of an older key database have been written
+		handle.statistics();
+		DatabaseEntry count = new DatabaseEntry();
+		if ( handle.statisticsDatabase().get( null, new DatabaseEntry( KeyStatistics.valueKey( indexKey ) ), count,
+				LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS ) {
+			return 0;
+		}
+		return ArrayUtil.toLong( count.getData(), 0 );
+	}
+
+
+	/**
+	 * @return the committed ids of a value, sorted, from the cache of the
+	 *         index if there is one. Must be called under the read lock of
+	 *         the index since it fills the cache. The result is shared and
+	 *         must not be modified.
+	 */
+	long[] getIds( DatabaseHandle handle, byte[] key ) {
+		PostingCache cache = handle.cache;
+		if ( cache == null ) {
+			return readIds( handle, key );
+		}
+		long[] ids = cache.get( handle, key );
+		if ( ids == null ) {
+			ids = readIds( handle, key );
+			cache.put( handle, key, ids );
+		}
+		return ids;
+	}
+
+
+	/**
+	 * @return the committed ids of a value, sorted, read from the database.
+	 */
+	long[] readIds( DatabaseHandle handle, byte[] key ) {
+		Database db = handle.database();
+		if ( handle.isDuplicates() ) {
+			return getDuplicateIds( db, key );
+		}
+		DatabaseEntry value = new DatabaseEntry();
+		db.get( null, new DatabaseEntry( key ), value, LockMode.READ_UNCOMMITTED );
+
+		return value.getData() != null ? ArrayUtil.sorted( Postings.decode( value.getData() ) ) : EMPTY_IDS;
+	}
+
+
+	/**
+	 * Reads one page of the committed ids of a value, see
+	 * {@link ArrayUtil#page(long[], long, int, int)}. The delta format is read
+	 * from the start with partial reads just long enough for the page, the
+	 * duplicates layout with a cursor positioned after <code>afterId</code>.
+	 * Legacy lists are read whole.
+	 */
+	long[] getIds( DatabaseHandle handle, byte[] key, long afterId, int offset, int limit ) {
+		if ( limit == 0 || afterId == Long.MAX_VALUE ) {
+			return EMPTY_IDS;
+		}
+		Database db = handle.database();
+		if ( handle.isDuplicates() ) {
+			return getDuplicateIds( db, key, afterId, offset, limit );
+		}
+		final DatabaseEntry keyEntry = new DatabaseEntry( key );
+		final DatabaseEntry value = new DatabaseEntry();
+		// header and about two bytes per id
+		long length = 16 + 2L * ( (long) offset + limit );
+		while ( true ) {
+			int partial = (int) Math.min( length, Integer.MAX_VALUE );
+			value.setPartial( 0, partial, true );
+			if ( db.get( null, keyEntry, value, LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS ) {
+				return EMPTY_IDS;
+			}
+			byte[] data = value.getData();
+			if ( Postings.isLegacy( data ) ) {
+				return ArrayUtil.page( getIds( handle, key ), afterId, offset, limit );
+			}
+			if ( data[0] == Postings.VERSION_SKIP_LIST ) {
+				// the skip table leads to the blocks of the page
+				final Database source = db;
+				return Postings.page( new Postings.Source() {
+					@Override
+					public byte[] read( int from, int bytes ) {
+						value.setPartial( from, bytes, true );
+						source.get( null, keyEntry, value, LockMode.READ_UNCOMMITTED );
+						return value.getData() != null ? value.getData() : new byte[0];
+					}
+				}, afterId, offset, limit );
+			}
+			// lists without a skip table are short, unless written before there was one
+			long[] page = Postings.page( data, afterId, offset, limit );
+			if ( page != null ) {
+				return page;
+			}
+			length *= 4;
 		}
 	}
 
 
+	private long[] getDuplicateIds( Database db, byte[] key, long afterId, int offset, int limit ) {
+		Cursor cursor = db.openCursor( null, CursorConfig.READ_UNCOMMITTED );
+		try {
+			DatabaseEntry keyEntry = new DatabaseEntry( key );
+			// duplicates sort by their big-endian bytes, which is id order
+			DatabaseEntry data = new DatabaseEntry( ArrayUtil.toBytes( Math.max( afterId + 1, 0 ) ) );
+			OperationStatus status = cursor.getSearchBothRange( keyEntry, data, LockMode.READ_UNCOMMITTED );
+			for ( int i = 0; i < offset && status == OperationStatus.SUCCESS; i++ ) {
+				status = cursor.getNextDup( keyEntry, data, LockMode.READ_UNCOMMITTED );
+			}
+			if ( status != OperationStatus.SUCCESS ) {
+				return EMPTY_IDS;
+			}
+			long[] ids = new long[Math.min( limit, cursor.count() )];
+			int i = 0;
+			do {
+				ids[i++] = ArrayUtil.toLong( data.getData(), 0 );
+			} while ( i < ids.length && cursor.getNextDup( keyEntry, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS );
+			return i == ids.length ? ids : Arrays.copyOf( ids, i );
+		} finally {
+			cursor.close();
+		}
+	}
+
+
+	private long[] getDuplicateIds( Database db, byte[] key ) {
+		Cursor cursor = db.openCursor( null, CursorConfig.READ_UNCOMMITTED );
+		try {
+			DatabaseEntry keyEntry = new DatabaseEntry( key );
+			DatabaseEntry data = new DatabaseEntry();
+			if ( cursor.getSearchKey( keyEntry, data, LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS ) {
+				return EMPTY_IDS;
+			}
+			long[] ids = new long[cursor.count()];
+			int i = 0;
+			do {
+				ids[i++] = ArrayUtil.toLong( data.getData(), 0 );
+			} while ( i < ids.length && cursor.getNextDup( keyEntry, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS );
+			return i == ids.length ? ids : Arrays.copyOf( ids, i );
+		} finally {
+			cursor.close();
+		}
+	}
+
+
+	/**
+	 * @return the number of ids which were actually removed.
+	 */
+	private int removeDuplicates( Database db, byte[] indexKey, long[] entityIds ) {
+		int removed = 0;
+		DatabaseEntry keyEntry = new DatabaseEntry( indexKey );
+		Cursor cursor = db.openCursor( null, null );
+		try {
+			for ( long id : entityIds ) {
+				if ( cursor.getSearchBoth( keyEntry, new DatabaseEntry( ArrayUtil.toBytes( id ) ), LockMode.DEFAULT ) == OperationStatus.SUCCESS ) {
+					cursor.delete();
+					removed++;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		return removed;
+	}
+
+
 	public void commit( Database db ) {
 		db.sync();
 	}
@@ -364,57 +870,163 @@ public class BerkeleyDbDataSource extends LogBackedXaDataSource {
 	}
 
 
-	private Database createDB( IndexIdentifier identifier, Object key ) {
+	static String indexDir( String storePath, IndexIdentifier identifier ) {
+		return storePath + "/index/bdb/" + identifier.itemClass.getSimpleName() + "/" + identifier.indexName;
+	}
+
+	//name of a key database inside the shared environment
+	static String databaseName( IndexIdentifier identifier, Object key ) {
+		return identifier.itemClass.getSimpleName() + "/" + identifier.indexName + "/" + key;
+	}
+
+	/**
+	 * The config of the shared environment and of the per index/key
+	 * environments alike. Both use the JE shared cache, so that an index
+	 * with many keys is bounded by one cache budget rather than one cache
+	 * per key environment, each sized for the whole heap.
+	 */
+	static EnvironmentConfig environmentConfig( boolean allowCreate ) {
+		EnvironmentConfig environmentConfig = new EnvironmentConfig();
+		environmentConfig.setAllowCreate( allowCreate );
+		environmentConfig.setSharedCache( true );
+		return environmentConfig;
+	}
+
+	synchronized Environment sharedEnvironment() {
+		if ( null == sharedEnvironment ) {
+			String dir = BerkeleyDbDataSource.getStoreDir( baseStorePath + "/index/bdb/" + SHARED_DIR ).first();
+			sharedEnvironment = new Environment( new File( dir ), environmentConfig( true ) );
+		}
+		return sharedEnvironment;
+	}
+
+	private Environment keyEnvironment( IndexIdentifier identifier, Object key, boolean allowCreate ) {
+		String dir = BerkeleyDbDataSource.getStoreDir( indexDir( baseStorePath, identifier ) + "/" + key ).first();
+		return new Environment( new File( dir ), environmentConfig( allowCreate ) );
+	}
+
+	/**
+	 * @return the posting list cache of an index, or <code>null</code> if it
+	 *         is not configured with {@link BerkeleyDbIndexImplementation#KEY_CACHE_SIZE}.
+	 */
+	PostingCache cache( IndexIdentifier identifier ) {
+		PostingCache cache = caches.get( identifier );
+		if ( null == cache ) {
+			String size = indexConfig( identifier, BerkeleyDbIndexImplementation.KEY_CACHE_SIZE );
+			long bytes = size != null ? PostingCache.parseSize( size ) : 0;
+			if ( bytes <= 0 ) {
+				return null;
+			}
+			cache = new PostingCache( bytes );
+			PostingCache existing = caches.putIfAbsent( identifier, cache );
+			if ( null != existing ) {
+				cache = existing;
+			}
+		}
+		return cache;
+	}
+
+	String indexConfig( IndexIdentifier identifier, String key ) {
+		Map<String, String> config = indexStore.get( identifier.itemClass, identifier.indexName );
+		return config != null ? config.get( key ) : null;
+	}
+
+	//posting layout configured for an index, only used when creating key databases
+	private boolean configuredDuplicates( IndexIdentifier identifier ) {
+		return BerkeleyDbIndexImplementation.STORAGE_DUPLICATES.equals(
+				indexConfig( identifier, BerkeleyDbIndexImplementation.KEY_STORAGE ) );
+	}
+
+	//expected number of values per key of the bloom filters of an index, 0 for none
+	long configuredBloomFilter( IndexIdentifier identifier ) {
+		String values = indexConfig( identifier, BerkeleyDbIndexImplementation.KEY_BLOOM_FILTER );
+		return values != null ? Math.max( 0, Long.parseLong( values.trim() ) ) : 0;
+	}
+
+	boolean configuredReverseIndex( IndexIdentifier identifier ) {
+		return Boolean.parseBoolean( indexConfig( identifier, BerkeleyDbIndexImplementation.KEY_REVERSE_INDEX ) );
+	}
+
+	boolean configuredTypedKeys( IndexIdentifier identifier ) {
+		return BerkeleyDbIndexImplementation.KEY_ENCODING_TYPED.equals(
+				indexConfig( identifier, BerkeleyDbIndexImplementation.KEY_KEY_ENCODING ) );
+	}
+
+	Database createDB( IndexIdentifier identifier, Object key ) {
 		try {
-			EnvironmentConfig environmentConfig = new EnvironmentConfig();
-			environmentConfig.setAllowCreate( true );
-			// environmentConfig.setConfigParam( "java.util.logging.level",
-			// "INFO" );
-			// perform other environment configurations
-			String dir =
-					BerkeleyDbDataSource.getStoreDir(
-							baseStorePath + "/index/bdb/" + identifier.itemClass.getSimpleName() + "/" + identifier.indexName + "/"
-									+ key ).first();
-			//System.err.println( "bdb environ opening:" + dir );
-			Environment environment = new Environment( new File( dir ), environmentConfig );
-			environmentConfig.setTransactional( false );
-			DatabaseConfig databaseConfig = new DatabaseConfig();
-			databaseConfig.setAllowCreate( true );
-			// perform other database configurations
-			Database db = environment.openDatabase( null, key.toString(), databaseConfig );
-			return db;
+			if ( sharedMode ) {
+				return openDatabase( sharedEnvironment(), databaseName( identifier, key ), identifier );
+			}
+			return openDatabase( keyEnvironment( identifier, key, true ), key.toString(), identifier );
 		} catch ( Exception e ) {
 			throw new RuntimeException( e );
 		}
 	}
 
-	private EntityStore createEntityStore( IndexIdentifier identifier, Object key ) {
-		try {
-			String dir =
-					BerkeleyDbDataSource.getStoreDir(
-							baseStorePath + "/index/bdb/" + identifier.itemClass.getSimpleName() + "/" + identifier.indexName + "/"
-									+ key ).first();
-
-			File envHome = new File(dir);
+	private Database openDatabase( Environment environment, String name, IndexIdentifier identifier ) {
+		DatabaseConfig databaseConfig = new DatabaseConfig();
+		if ( environment.getDatabaseNames().contains( name ) ) {
+			// existing databases keep the layout they were created with
+			databaseConfig.setUseExistingConfig( true );
+		} else {
+			databaseConfig.setAllowCreate( true );
+			databaseConfig.setSortedDuplicates( configuredDuplicates( identifier ) );
+		}
+		return environment.openDatabase( null, name, databaseConfig );
+	}
 
-			EnvironmentConfig myEnvConfig = new EnvironmentConfig();
+	EntityStore createEntityStore( IndexIdentifier identifier, Object key ) {
+		try {
 			StoreConfig storeConfig = new StoreConfig();
+			storeConfig.setAllowCreate( !isReadOnly );
 
-			myEnvConfig.setAllowCreate(!isReadOnly);
-			storeConfig.setAllowCreate(!isReadOnly);
-
-			Environment myEnv = new Environment(envHome, myEnvConfig);
-			return new EntityStore(myEnv, "RelationshipStore", storeConfig);
+			if ( sharedMode ) {
+				return new EntityStore( sharedEnvironment(), "RelationshipStore/" + databaseName( identifier, key ), storeConfig );
+			}
+			return new EntityStore( keyEnvironment( identifier, key, !isReadOnly ), "RelationshipStore", storeConfig );
 		} catch ( Exception e ) {
 			throw new RuntimeException( e );
 		}
 	}
 
-	public Map<IndexIdentifier, Map<String, Database>> getDatabases() {
-		return databases;
+	/**
+	 * Drops all databases and files of one index and forgets its config,
+	 * leaving other indexes open. Repeating it, as recovery may, is harmless.
+	 */
+	void deleteIndex( IndexIdentifier identifier ) {
+		ConcurrentMap<String, DatabaseHandle> keys = handles.remove( identifier );
+		if ( keys != null ) {
+			for ( DatabaseHandle handle : keys.values() ) {
+				handle.delete( !sharedMode );
+			}
+		}
+		Database entities = entityDatabases.remove( identifier );
+		if ( entities != null && entities.getEnvironment().isValid() ) {
+			entities.close();
+			if ( !sharedMode ) {
+				entities.getEnvironment().close();
+			}
+		}
+		caches.remove( identifier );
+		if ( sharedMode ) {
+			Environment environment = sharedEnvironment();
+			String prefix = databaseName( identifier, "" );
+			for ( String name : environment.getDatabaseNames() ) {
+				if ( name.startsWith( prefix ) || name.startsWith( "persist#RelationshipStore/" + prefix ) ) {
+					environment.removeDatabase( null, name );
+				}
+			}
+		}
+		// the environments of every key, or nothing in shared mode
+		deleteFileOrDirectory( new File( indexDir( baseStorePath, identifier ) ) );
+		indexStore.remove( identifier.itemClass, identifier.indexName );
 	}
 
-	public Map<IndexIdentifier, Map<String, EntityStore>> getEntityStores() {
-		return entityStores;
+	Collection<DatabaseHandle> getHandles() {
+		Collection<DatabaseHandle> result = new ArrayList<DatabaseHandle>();
+		for ( ConcurrentMap<String, DatabaseHandle> keys : handles.values() ) {
+			result.addAll( keys.values() );
+		}
+		return result;
 	}
-}
\ No newline at end of file
+}
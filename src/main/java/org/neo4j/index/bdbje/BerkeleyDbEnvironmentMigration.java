@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.io.File;
+import java.util.List;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.Relationship;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Folds the per index/key environments of a store directory into the single
+ * shared environment used when {@link BerkeleyDbDataSource.Configuration#shared_environment}
+ * is set. The database must not be running while this tool is used.
+ */
+public class BerkeleyDbEnvironmentMigration {
+
+	private static final String STORE_PREFIX = "persist#RelationshipStore#";
+
+	private final String storeDir;
+
+
+	public BerkeleyDbEnvironmentMigration( String storeDir ) {
+		this.storeDir = new File( storeDir ).getAbsolutePath();
+	}
+
+
+	public static void main( String[] args ) {
+		if ( args.length != 1 ) {
+			System.err.println( "usage: " + BerkeleyDbEnvironmentMigration.class.getName() + " <graph store dir>" );
+			System.exit( 1 );
+		}
+		int migrated = new BerkeleyDbEnvironmentMigration( args[0] ).migrate();
+		System.out.println( "migrated " + migrated + " index/key environments" );
+	}
+
+
+	/**
+	 * Copies every database found in the per index/key directories into the
+	 * shared environment and removes the old directories.
+	 *
+	 * @return the number of index/key environments migrated.
+	 */
+	public int migrate() {
+		File bdbDir = new File( storeDir, "index/bdb" );
+		if ( !bdbDir.isDirectory() ) {
+			return 0;
+		}
+		String sharedDir = BerkeleyDbDataSource.getStoreDir( bdbDir + "/" + BerkeleyDbDataSource.SHARED_DIR ).first();
+		Environment shared = new Environment( new File( sharedDir ), BerkeleyDbDataSource.environmentConfig( true ) );
+		int count = 0;
+		try {
+			count += migrate( shared, Node.class );
+			count += migrate( shared, Relationship.class );
+		} finally {
+			shared.close();
+		}
+		return count;
+	}
+
+
+	private int migrate( Environment shared, Class<? extends PropertyContainer> itemClass ) {
+		File classDir = new File( storeDir, "index/bdb/" + itemClass.getSimpleName() );
+		File[] indexDirs = classDir.listFiles();
+		if ( null == indexDirs ) {
+			return 0;
+		}
+		int count = 0;
+		for ( File indexDir : indexDirs ) {
+			File[] keyDirs = indexDir.listFiles();
+			if ( null == keyDirs ) {
+				continue;
+			}
+			IndexIdentifier identifier = new IndexIdentifier( itemClass, indexDir.getName() );
+			for ( File keyDir : keyDirs ) {
+				if ( keyDir.isDirectory() ) {
+					migrate( shared, identifier, keyDir );
+					count++;
+				}
+			}
+			indexDir.delete();
+		}
+		classDir.delete();
+		return count;
+	}
+
+
+	private void migrate( Environment shared, IndexIdentifier identifier, File keyDir ) {
+		String key = keyDir.getName();
+		Environment source = new Environment( keyDir, BerkeleyDbDataSource.environmentConfig( false ) );
+		try {
+			List<String> names = source.getDatabaseNames();
+			for ( String name : names ) {
+				String target = targetName( identifier, key, name );
+				if ( null == target ) {
+					System.err.println( "skipping unknown database " + name + " in " + keyDir );
+					continue;
+				}
+				copy( source, name, shared, target );
+			}
+		} finally {
+			source.close();
+		}
+		BerkeleyDbDataSource.deleteFileOrDirectory( keyDir );
+	}
+
+
+	static String targetName( IndexIdentifier identifier, String key, String name ) {
+		if ( name.equals( key ) ) {
+			return BerkeleyDbDataSource.databaseName( identifier, key );
+		}
+		if ( name.equals( key + KeyStatistics.DATABASE_SUFFIX ) ) {
+			return BerkeleyDbDataSource.databaseName( identifier, key ) + KeyStatistics.DATABASE_SUFFIX;
+		}
+		if ( name.startsWith( STORE_PREFIX ) ) {
+			return "persist#RelationshipStore/" + BerkeleyDbDataSource.databaseName( identifier, key ) + "#"
+					+ name.substring( STORE_PREFIX.length() );
+		}
+		return null;
+	}
+
+
+	private void copy( Environment source, String sourceName, Environment target, String targetName ) {
+		DatabaseConfig sourceConfig = new DatabaseConfig();
+		sourceConfig.setReadOnly( true );
+		Database from = source.openDatabase( null, sourceName, sourceConfig );
+		Database to = null;
+		Cursor cursor = null;
+		try {
+			DatabaseConfig targetConfig = new DatabaseConfig();
+			targetConfig.setAllowCreate( true );
+			targetConfig.setSortedDuplicates( from.getConfig().getSortedDuplicates() );
+			to = target.openDatabase( null, targetName, targetConfig );
+
+			cursor = from.openCursor( null, CursorConfig.READ_UNCOMMITTED );
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry data = new DatabaseEntry();
+			while ( cursor.getNext( key, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS ) {
+				to.put( null, key, data );
+			}
+		} finally {
+			if ( null != cursor ) {
+				cursor.close();
+			}
+			if ( null != to ) {
+				to.close();
+			}
+			from.close();
+		}
+	}
+}
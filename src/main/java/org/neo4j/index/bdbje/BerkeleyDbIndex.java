@@ -19,11 +19,12 @@
  */
 package org.neo4j.index.bdbje;
 
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
-import com.sleepycat.persist.EntityStore;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -33,14 +34,26 @@ import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.kernel.impl.core.ReadOnlyDbException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements Index<T> {
 
 	final BerkeleyDbIndexImplementation	_service;
 	final IndexIdentifier				_identifier;
+	// per key handles of this index, one probe instead of the data source's two
+	private final ConcurrentMap<String, DatabaseHandle> _handles = new ConcurrentHashMap<String, DatabaseHandle>();
 
 
 	BerkeleyDbIndex( BerkeleyDbIndexImplementation implementation, IndexIdentifier identifier ) {
@@ -49,6 +62,15 @@ public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements In
 	}
 
 
+	DatabaseHandle handle( String key ) {
+		DatabaseHandle handle = _handles.get( key );
+		if ( null == handle || handle.isDeleted() ) {
+			handle = _service.dataSource().getHandle( _identifier, key );
+			_handles.put( key, handle );
+		}
+		return handle;
+	}
+
 	BerkeleyDbXaConnection getConnection() {
 		if ( _service.broker() == null ) {
 			throw new ReadOnlyDbException();
@@ -67,112 +89,466 @@ public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements In
 
 	@Override
 	public void add( T entity, String key, Object value ) {
-		//getConnection().add( this, entity, key, value );
-
-		// directly commit stuff, no TX caching
-		Database db = _service.dataSource().getDatabase( _identifier, key );
-		//List<Long> ids = new ArrayList<Long>();
-		//ids.add(getEntityId(entity));
-		//service.dataSource().addEntry( db, identifier, ArrayUtil.toPrimitiveLongArray( ids ), key, value );
-		_service.dataSource().addEntry( db, _identifier, new long[] {getEntityId(entity)}, key, value );
+		getConnection().add( this, entity, key, value );
 	}
 
 	@Override
 	public IndexHits<T> get( String key, Object value ) {
-		// BerkeleyDbXaConnection connection = getReadOnlyConnection();
-		// BerkeleydbTransaction tx = connection != null ? connection.getTx() : null;
-		// Collection<Long> added = tx != null ? tx.getAddedIds( this, key, value ) :
-		// Collections.<Long>emptyList();
-		// Collection<Long> removed = tx != null ? tx.getRemovedIds( this, key, value ) :
-		// Collections.<Long>emptyList();
+		return read( key, value, +1 );
+	}
+
+	private BerkeleydbTransaction tx() {
+		BerkeleyDbXaConnection connection = getReadOnlyConnection();
+		return connection != null ? connection.getTx() : null;
+	}
+
+	/**
+	 * Reads the committed ids of a value, with the changes of the current
+	 * transaction applied on top.
+	 */
+	private IndexHits<T> read( String key, Object value, int vector ) {
+		BerkeleydbTransaction tx = tx();
+		DatabaseHandle handle = handle( key );
+		if ( tx == null || ( tx.getAddedIds( this, key, value ).isEmpty() && tx.getRemovedIds( this, key, value ).isEmpty() ) ) {
+			byte[] indexKey = handle.indexKey( value );
+			if ( !handle.mightContain( indexKey ) ) {
+				return NOTFOUND;
+			}
+			if ( handle.cache == null ) {
+				_service.dataSource().getReadLock( _identifier );
+				try {
+					return read( handle, indexKey, vector );
+				} finally {
+					_service.dataSource().releaseReadLock( _identifier );
+				}
+			}
+		}
+		long[] ids = ids( key, value );
+		if ( ids.length == 0 ) {
+			return NOTFOUND;
+		}
+		return new LightIndexHits(
+				vector < 0 ? new Postings.ReverseArrayIterator( ids ) : new Postings.ArrayIterator( ids ),
+				ids.length );
+	}
 
-		_service.dataSource().getReadLock();
-		Database db = _service.dataSource().getDatabase( _identifier, key );
+	/**
+	 * Returns the ids of the entities indexed with a value, sorted ascending,
+	 * without looking up the entities themselves. The changes of the current
+	 * transaction are applied.
+	 */
+	public long[] getIds( String key, Object value ) {
+		return ids( key, value ).clone();
+	}
 
+	/**
+	 * @return the ids of {@link #getIds(String, Object)}, possibly shared
+	 *         with the posting list cache.
+	 */
+	private long[] ids( String key, Object value ) {
+		BerkeleydbTransaction tx = tx();
+		Set<Long> added = tx != null ? tx.getAddedIds( this, key, value ) : Collections.<Long>emptySet();
+		Set<Long> removed = tx != null ? tx.getRemovedIds( this, key, value ) : Collections.<Long>emptySet();
+		DatabaseHandle handle = handle( key );
+		byte[] indexKey = handle.indexKey( value );
+		if ( added.isEmpty() && !handle.mightContain( indexKey ) ) {
+			return BerkeleyDbDataSource.EMPTY_IDS;
+		}
+		if ( handle.cache != null && added.isEmpty() && removed.isEmpty() ) {
+			// a hit needs no lock, invalidation happens before commit returns
+			long[] cached = handle.cache.get( handle, indexKey );
+			if ( cached != null ) {
+				return cached;
+			}
+		}
+		_service.dataSource().getReadLock( _identifier );
 		try {
-			DatabaseEntry result = new DatabaseEntry();
-			OperationStatus status =
-					db.get( null,
-							new DatabaseEntry( BerkeleyDbDataSource.indexKey( key, value ) ),
-							result,
-							LockMode.READ_UNCOMMITTED );
+			long[] ids = _service.dataSource().getIds( handle, indexKey );
+			ids = ArrayUtil.include( ids, ArrayUtil.toPrimitiveLongArray( added ) );
+			return ArrayUtil.exclude( ids, ArrayUtil.toPrimitiveLongArray( removed ) );
+		} finally {
+			_service.dataSource().releaseReadLock( _identifier );
+		}
+	}
 
-			if (status != OperationStatus.SUCCESS) {
-				return NOTFOUND;
+	/**
+	 * Returns the number of entities indexed with a value, without reading
+	 * their ids unless the current transaction has changed the value.
+	 */
+	public long count( String key, Object value ) {
+		BerkeleydbTransaction tx = tx();
+		if ( tx != null && !( tx.getAddedIds( this, key, value ).isEmpty() && tx.getRemovedIds( this, key, value ).isEmpty() ) ) {
+			return ids( key, value ).length;
+		}
+		DatabaseHandle handle = handle( key );
+		byte[] indexKey = handle.indexKey( value );
+		if ( !handle.mightContain( indexKey ) ) {
+			return 0;
+		}
+		_service.dataSource().getReadLock( _identifier );
+		try {
+			return _service.dataSource().getCount( handle, indexKey );
+		} finally {
+			_service.dataSource().releaseReadLock( _identifier );
+		}
+	}
+
+	/**
+	 * @return the number of distinct committed values of <code>key</code>.
+	 */
+	public long distinctValues( String key ) {
+		return handle( key ).statistics().values();
+	}
+
+	/**
+	 * @return the number of committed (entity, value) pairs of <code>key</code>.
+	 */
+	public long totalIds( String key ) {
+		return handle( key ).statistics().ids();
+	}
+
+	/**
+	 * Returns the ids {@link #query(String, Object)} would return the
+	 * entities of, in the same order, without looking up the entities.
+	 */
+	public long[] queryIds( String key, Object queryOrQueryObject ) {
+		if (queryOrQueryObject instanceof DecreaseOrderQuery) {
+			long[] ids = ids( key, ((DecreaseOrderQuery)queryOrQueryObject)._value );
+			long[] reversed = new long[ids.length];
+			for ( int i = 0; i < ids.length; i++ ) {
+				reversed[i] = ids[ids.length - 1 - i];
 			}
+			return reversed;
+		}
+		if (queryOrQueryObject instanceof PagedQuery) {
+			return pageIds( key, (PagedQuery)queryOrQueryObject ).clone();
+		}
+		KeyRangeIterator range = rangeIds( key, queryOrQueryObject );
+		if (range == null) {
+			return BerkeleyDbDataSource.EMPTY_IDS;
+		}
+		try {
+			long[] ids = new long[16];
+			int count = 0;
+			while ( range.hasNext() ) {
+				if ( count == ids.length ) {
+					ids = Arrays.copyOf( ids, count * 2 );
+				}
+				ids[count++] = range.next();
+			}
+			return Arrays.copyOf( ids, count );
+		} finally {
+			range.close();
+		}
+	}
 
-			return new LightIndexHits(result.getData(), +1);
+	private IndexHits<T> read( DatabaseHandle handle, byte[] indexKey, int vector ) {
+		Database db = handle.database();
+		if ( handle.isDuplicates() ) {
+			Cursor cursor = handle.openCursor();
+			try {
+				DatabaseEntry keyEntry = new DatabaseEntry( indexKey );
+				DatabaseEntry data = new DatabaseEntry();
+				if ( cursor.getSearchKey( keyEntry, data, LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS ) {
+					handle.closeCursor( cursor );
+					return NOTFOUND;
+				}
+				return new CursorIndexHits( handle, cursor, keyEntry, data, vector );
+			} catch ( RuntimeException e ) {
+				handle.closeCursor( cursor );
+				throw e;
+			}
+		}
 
-		} catch ( Exception e ) {
-			throw new RuntimeException( e );
+		DatabaseEntry result = new DatabaseEntry();
+		OperationStatus status =
+				db.get( null,
+						new DatabaseEntry( indexKey ),
+						result,
+						LockMode.READ_UNCOMMITTED );
+
+		if (status != OperationStatus.SUCCESS) {
+			return NOTFOUND;
+		}
+
+		return new LightIndexHits(result.getData(), vector);
+	}
+
+	private IndexHits<T> page( String key, PagedQuery query ) {
+		long[] ids = pageIds( key, query );
+		if ( ids.length == 0 ) {
+			return NOTFOUND;
+		}
+		return new LightIndexHits( new Postings.ArrayIterator( ids ), ids.length );
+	}
+
+	/**
+	 * Reads just one page of the committed ids, unless the current
+	 * transaction has changed the value or the ids are cached.
+	 */
+	private long[] pageIds( String key, PagedQuery query ) {
+		BerkeleydbTransaction tx = tx();
+		DatabaseHandle handle = handle( key );
+		if ( handle.cache != null
+				|| ( tx != null && !( tx.getAddedIds( this, key, query._value ).isEmpty() && tx.getRemovedIds( this, key, query._value ).isEmpty() ) ) ) {
+			return ArrayUtil.page( ids( key, query._value ), query._afterId, query._offset, query._limit );
+		}
+		byte[] indexKey = handle.indexKey( query._value );
+		if ( !handle.mightContain( indexKey ) ) {
+			return BerkeleyDbDataSource.EMPTY_IDS;
+		}
+		_service.dataSource().getReadLock( _identifier );
+		try {
+			return _service.dataSource().getIds( handle, indexKey, query._afterId, query._offset, query._limit );
 		} finally {
-			_service.dataSource().releaseReadLock();
+			_service.dataSource().releaseReadLock( _identifier );
 		}
 	}
 
+	/**
+	 * Streams the ids of every value of <code>key</code> within a
+	 * {@link RangeQuery} or {@link PrefixQuery}, in key order, with the
+	 * changes of the current transaction applied.
+	 *
+	 * @return <code>null</code> if nothing can match.
+	 */
+	private KeyRangeIterator rangeIds( String key, Object queryOrQueryObject ) {
+		DatabaseHandle handle = handle( key );
+		KeyRange range;
+		int limit = Integer.MAX_VALUE;
+		if (queryOrQueryObject instanceof RangeQuery) {
+			RangeQuery query = (RangeQuery)queryOrQueryObject;
+			byte[] lower = query._from != null ? handle.indexKey( query._from ) : null;
+			byte[] upper = query._to != null ? handle.indexKey( query._to ) : null;
+			boolean lowerInclusive = query._fromInclusive;
+			boolean upperInclusive = query._toInclusive;
+			if ( handle.hasTypedKeys() ) {
+				// an open end stays within the type of the other bound
+				if ( lower == null && upper != null ) {
+					lower = new byte[] { upper[0] };
+					lowerInclusive = true;
+				}
+				if ( upper == null && lower != null ) {
+					upper = new byte[] { (byte) ( lower[0] + 1 ) };
+					upperInclusive = false;
+				}
+			}
+			range = new KeyRange( lower, lowerInclusive, upper, upperInclusive );
+		} else {
+			PrefixQuery prefix = queryOrQueryObject instanceof PrefixQuery
+					? (PrefixQuery)queryOrQueryObject
+					: PrefixQuery.parse( queryOrQueryObject );
+			if (prefix == null) {
+				throw new RuntimeException( "Unsuporded query "+queryOrQueryObject.getClass() );
+			}
+			range = KeyRange.prefix( handle.indexKey( prefix._prefix ) );
+			limit = prefix._limit;
+		}
+
+		if ( range.isEmpty() || limit == 0 ) {
+			return null;
+		}
+		SortedMap<byte[], long[][]> changes = changes( key, handle, range );
+		_service.dataSource().getReadLock( _identifier );
+		try {
+			return new KeyRangeIterator( _service.dataSource(), handle, range, changes, limit );
+		} finally {
+			_service.dataSource().releaseReadLock( _identifier );
+		}
+	}
+
+	/**
+	 * @return <code>{ added, removed }</code> ids of the current transaction
+	 *         per encoded value of <code>key</code> within <code>range</code>.
+	 */
+	private SortedMap<byte[], long[][]> changes( String key, DatabaseHandle handle, KeyRange range ) {
+		SortedMap<byte[], long[][]> changes = new TreeMap<byte[], long[][]>( KeyCodec.ORDER );
+		BerkeleydbTransaction tx = tx();
+		if ( tx != null ) {
+			collectChanges( changes, tx.getAddedValues( this, key ), handle, range, 0 );
+			collectChanges( changes, tx.getRemovedValues( this, key ), handle, range, 1 );
+		}
+		return changes;
+	}
+
+	private static void collectChanges( SortedMap<byte[], long[][]> changes, Map<Object, Set<Long>> values,
+			DatabaseHandle handle, KeyRange range, int slot ) {
+		for ( Map.Entry<Object, Set<Long>> entry : values.entrySet() ) {
+			if ( entry.getValue().isEmpty() ) {
+				continue;
+			}
+			byte[] indexKey = handle.indexKey( entry.getKey() );
+			if ( !range.contains( indexKey ) ) {
+				continue;
+			}
+			long[][] change = changes.get( indexKey );
+			if ( change == null ) {
+				change = new long[][] { BerkeleyDbDataSource.EMPTY_IDS, BerkeleyDbDataSource.EMPTY_IDS };
+				changes.put( indexKey, change );
+			}
+			change[slot] = ArrayUtil.include( change[slot], ArrayUtil.toPrimitiveLongArray( entry.getValue() ) );
+		}
+	}
+
+	private static boolean isExactTerm( CompoundQuery.Term term ) {
+		return !( term._value instanceof RangeQuery || term._value instanceof PrefixQuery
+				|| term._value instanceof PagedQuery );
+	}
+
 	protected abstract T idToEntity( long id );
 	protected abstract long getEntityId( T entity );
 
 
+	/**
+	 * Adds the entity unless another one is indexed with the value. The value
+	 * stays locked until the transaction completes, so of concurrent callers
+	 * for one value exactly one adds, while callers for different values do
+	 * not wait for each other.
+	 */
 	@Override
 	public T putIfAbsent(T entity, String key, Object value) {
-		throw new UnsupportedOperationException();
+		T existing = first( key, value );
+		if ( existing != null ) {
+			return existing;
+		}
+		BerkeleyDbXaConnection connection = getConnection();
+		BerkeleydbTransaction tx = connection.getTx();
+		byte[] indexKey = handle( key ).indexKey( value );
+		boolean locked = _service.dataSource().valueLocks.lock( tx, _identifier, key, indexKey );
+		// the value may have been committed while waiting for the lock
+		existing = first( key, value );
+		if ( existing != null ) {
+			if ( locked ) {
+				_service.dataSource().valueLocks.unlock( tx, _identifier, key, indexKey );
+			}
+			return existing;
+		}
+		connection.add( this, entity, key, value );
+		return null;
+	}
+
+	private T first( String key, Object value ) {
+		long[] ids = ids( key, value );
+		return ids.length > 0 ? idToEntity( ids[0] ) : null;
 	}
 
 	@Override
 	public IndexHits<T> query( Object queryOrQueryObject ) {
+		if (queryOrQueryObject instanceof CompoundQuery) {
+			return new SortedIndexHits( sortedIds( (CompoundQuery)queryOrQueryObject ) );
+		}
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Returns the ids of the entities matching a {@link CompoundQuery}, sorted
+	 * ascending, without looking up the entities.
+	 */
+	public long[] queryIds( Object queryOrQueryObject ) {
+		if (!(queryOrQueryObject instanceof CompoundQuery)) {
+			throw new UnsupportedOperationException();
+		}
+		SortedIds ids = sortedIds( (CompoundQuery)queryOrQueryObject );
+		long[] result = new long[ids.count()];
+		for ( int i = 0; i < result.length; i++ ) {
+			result[i] = ids.next();
+		}
+		return result;
+	}
+
+	/**
+	 * Reads the posting list of each term once. Intersections and unions
+	 * are evaluated lazily on top of them.
+	 */
+	private SortedIds sortedIds( CompoundQuery query ) {
+		if ( query._and ) {
+			// the statistics tell whether a term is empty before any list is read
+			for ( Object clause : query._clauses ) {
+				if ( clause instanceof CompoundQuery.Term && isExactTerm( (CompoundQuery.Term)clause )
+						&& count( ((CompoundQuery.Term)clause)._key, ((CompoundQuery.Term)clause)._value ) == 0 ) {
+					return new SortedIds.Array( BerkeleyDbDataSource.EMPTY_IDS );
+				}
+			}
+		}
+		SortedIds[] operands = new SortedIds[query._clauses.length];
+		for ( int i = 0; i < operands.length; i++ ) {
+			Object clause = query._clauses[i];
+			if ( clause instanceof CompoundQuery ) {
+				operands[i] = sortedIds( (CompoundQuery)clause );
+			} else {
+				CompoundQuery.Term term = (CompoundQuery.Term)clause;
+				// ranges are in key order and may hold an entity more than once
+				operands[i] = new SortedIds.Array( isExactTerm( term )
+						? ids( term._key, term._value )
+						: ArrayUtil.sorted( queryIds( term._key, term._value ) ) );
+			}
+		}
+		return query._and ? SortedIds.and( operands ) : SortedIds.or( operands );
+	}
+
 
 	@Override
 	public IndexHits<T> query( String key, Object queryOrQueryObject ) {
 		if (queryOrQueryObject instanceof DecreaseOrderQuery) {
 			DecreaseOrderQuery query = (DecreaseOrderQuery)queryOrQueryObject;
-
-			_service.dataSource().getReadLock();
-			Database db = _service.dataSource().getDatabase( _identifier, key );
-
-			try {
-				DatabaseEntry result = new DatabaseEntry();
-				OperationStatus status =
-						db.get( null,
-								new DatabaseEntry( BerkeleyDbDataSource.indexKey( key, query._value ) ),
-								result,
-								LockMode.READ_UNCOMMITTED );
-
-				if (status != OperationStatus.SUCCESS) {
-					return NOTFOUND;
-				}
-
-				return new LightIndexHits(result.getData(), -1);
-			} catch ( RuntimeException e ) {
-				throw e;
-			} catch ( Exception e ) {
-				throw new RuntimeException( e );
-			} finally {
-				_service.dataSource().releaseReadLock();
-			}
+			return read( key, query._value, -1 );
+		}
+		if (queryOrQueryObject instanceof PagedQuery) {
+			return page( key, (PagedQuery)queryOrQueryObject );
 		}
-		throw new RuntimeException( "Unsuporded query "+queryOrQueryObject.getClass() );
+		KeyRangeIterator range = rangeIds( key, queryOrQueryObject );
+		return range != null ? new RangeIndexHits( range ) : NOTFOUND;
 	}
 
 
 	@Override
 	public void remove( T entity ) {
-		throw new UnsupportedOperationException();
-
-		//		for (Database db : service.dataSource().getDatabases().get(identifier).values()) {
-		//			List<Long> ids = new ArrayList<Long>();
-		//			ids.add(getEntityId(entity));
-		//			service.dataSource().addEntry( db, identifier, ArrayUtil.toPrimitiveLongArray( ids ), key, value );
-		//		}
+		removeValues( entity, null );
 	}
 
 
 	@Override
 	public void remove( T entity, String key ) {
-		throw new UnsupportedOperationException();
+		removeValues( entity, key );
+	}
+
+	/**
+	 * Removes an entity from all values of one key, or of every key if
+	 * <code>key</code> is <code>null</code>. The committed values come from
+	 * the reverse index, so only the records of those values are touched.
+	 */
+	private void removeValues( T entity, String key ) {
+		if ( !_service.dataSource().configuredReverseIndex( _identifier ) ) {
+			throw new UnsupportedOperationException( "Index " + _identifier + " is not configured with "
+					+ BerkeleyDbIndexImplementation.KEY_REVERSE_INDEX );
+		}
+		long id = getEntityId( entity );
+		BerkeleyDbXaConnection connection = getConnection();
+		Map<String, List<byte[]>> committed;
+		_service.dataSource().getReadLock( _identifier );
+		try {
+			committed = _service.dataSource().getEntityValues( _identifier, id, key );
+		} finally {
+			_service.dataSource().releaseReadLock( _identifier );
+		}
+		for ( Map.Entry<String, List<byte[]>> entry : committed.entrySet() ) {
+			DatabaseHandle handle = handle( entry.getKey() );
+			for ( byte[] indexKey : entry.getValue() ) {
+				connection.remove( this, entity, entry.getKey(), handle.value( indexKey ) );
+			}
+		}
+		// values added by this transaction
+		BerkeleydbTransaction tx = connection.getTx();
+		Collection<String> keys = key != null ? Collections.singleton( key )
+				: new ArrayList<String>( tx.getAddedKeys( this ) );
+		for ( String addedKey : keys ) {
+			for ( Map.Entry<Object, Set<Long>> value : new ArrayList<Map.Entry<Object, Set<Long>>>(
+					tx.getAddedValues( this, addedKey ).entrySet() ) ) {
+				if ( value.getValue().contains( id ) ) {
+					connection.remove( this, entity, addedKey, value.getKey() );
+				}
+			}
+		}
 	}
 
 	@Override
@@ -183,25 +559,7 @@ public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements In
 
 	@Override
 	public void delete() {
-		System.err.println("bdb index delete");
-		for ( Map<String, Database> dbs : _service.dataSource().getDatabases().values() ) {
-			for ( Database db : dbs.values() ) {
-				if ( db.getEnvironment().isValid() ) {
-					System.err.println( "bdb environ closing:" + db.getEnvironment().getHome() );
-					db.close();
-					db.getEnvironment().close();
-				}
-			}
-		}
-		for ( Map<String, EntityStore> strs : _service.dataSource().getEntityStores().values() ) {
-			for ( EntityStore str : strs.values() ) {
-				if ( str.getEnvironment().isValid() ) {
-					System.err.println( "bdb environ closing:" + str.getEnvironment().getHome() );
-					str.close();
-					str.getEnvironment().close();
-				}
-			}
-		}
+		getConnection().deleteIndex( this );
 	}
 
 	@Override
@@ -288,35 +646,26 @@ public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements In
 
 	class LightIndexHits implements IndexHits<T> {
 
-		byte[] _array;
-		int length;
-		int pos = -1;
-		int v;
+		final IdIterator ids;
+		final int length;
 
 		public LightIndexHits(byte[] array, int vector) {
-			_array = array;
-			v = vector;
-			length = _array.length/8;
+			this( vector < 0 ? Postings.reverseIterator( array ) : Postings.iterator( array ), Postings.size( array ) );
+		}
 
-			if (v < 0) {
-				pos = length;
-			}
+		LightIndexHits(IdIterator ids, int length) {
+			this.ids = ids;
+			this.length = length;
 		}
 
 		@Override
 		public boolean hasNext() {
-			if (v < 0) {
-				return pos > 0;
-			} else {
-				return pos < length - 1;
-			}
+			return ids.hasNext();
 		}
 
 		@Override
 		public T next() {
-			return idToEntity(
-					ArrayUtil.toLong( _array, (pos += v)*8 )
-					);
+			return idToEntity( ids.next() );
 		}
 
 		@Override
@@ -354,6 +703,244 @@ public abstract class BerkeleyDbIndex<T extends PropertyContainer> implements In
 
 	}
 
+	/**
+	 * Streams the sorted duplicate records of one value, see
+	 * {@link BerkeleyDbIndexImplementation#STORAGE_DUPLICATES}. The cursor is
+	 * moved under the read lock, and the hits end early if the index is
+	 * deleted meanwhile.
+	 */
+	class CursorIndexHits implements IndexHits<T> {
+
+		final DatabaseHandle _handle;
+		final Cursor _cursor;
+		final DatabaseEntry _key;
+		final DatabaseEntry _data;
+		final byte[] _indexKey;
+		int size = -1;
+		final boolean forward;
+		boolean hasNext = true;
+
+		// the cursor is positioned on the first duplicate of the key
+		CursorIndexHits(DatabaseHandle handle, Cursor cursor, DatabaseEntry key, DatabaseEntry data, int vector) {
+			_handle = handle;
+			_cursor = cursor;
+			_key = key;
+			_data = data;
+			_indexKey = key.getData();
+			forward = vector > 0;
+
+			if (!forward) {
+				// step onto the last duplicate of this key
+				if (cursor.getNextNoDup( key, data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS) {
+					cursor.getPrev( key, data, LockMode.READ_UNCOMMITTED );
+				} else {
+					cursor.getLast( key, data, LockMode.READ_UNCOMMITTED );
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		@Override
+		public T next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			long id = ArrayUtil.toLong( _data.getData(), 0 );
+			OperationStatus status = OperationStatus.NOTFOUND;
+			_service.dataSource().getReadLock( _identifier );
+			try {
+				if (_handle.isOpen( _cursor )) {
+					status = forward
+							? _cursor.getNextDup( _key, _data, LockMode.READ_UNCOMMITTED )
+							: _cursor.getPrevDup( _key, _data, LockMode.READ_UNCOMMITTED );
+				}
+			} finally {
+				_service.dataSource().releaseReadLock( _identifier );
+			}
+			if (status != OperationStatus.SUCCESS) {
+				close();
+			}
+			return idToEntity( id );
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return this;
+		}
+
+		@Override
+		public int size() {
+			if (size < 0) {
+				// the statistics know without walking the duplicates
+				_service.dataSource().getReadLock( _identifier );
+				try {
+					size = _handle.isDeleted() ? 0 : (int) _service.dataSource().getCount( _handle, _indexKey );
+				} finally {
+					_service.dataSource().releaseReadLock( _identifier );
+				}
+			}
+			return size;
+		}
+
+		@Override
+		public void close() {
+			if (hasNext) {
+				hasNext = false;
+				_handle.closeCursor( _cursor );
+			}
+		}
+
+		@Override
+		public T getSingle() {
+			if (size() == 1 && hasNext()) {
+				return next();
+			}
+			throw new NoSuchElementException();
+		}
+
+		@Override
+		public float currentScore() {
+			return 0;
+		}
+
+	}
+
+	/**
+	 * Hits of a {@link KeyRangeIterator}. The size is counted on demand with
+	 * a second cursor.
+	 */
+	class RangeIndexHits implements IndexHits<T> {
+
+		final KeyRangeIterator ids;
+		int size = -1;
+
+		RangeIndexHits(KeyRangeIterator ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return ids.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return idToEntity( ids.next() );
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return this;
+		}
+
+		@Override
+		public int size() {
+			if (size < 0) {
+				size = ids.count();
+			}
+			return size;
+		}
+
+		@Override
+		public void close() {
+			ids.close();
+		}
+
+		@Override
+		public T getSingle() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T single = next();
+			if (hasNext()) {
+				close();
+				throw new NoSuchElementException();
+			}
+			return single;
+		}
+
+		@Override
+		public float currentScore() {
+			return 0;
+		}
+
+	}
+
+	/**
+	 * Hits of a {@link CompoundQuery}. The size is counted on demand by a
+	 * second pass over the same posting lists.
+	 */
+	class SortedIndexHits implements IndexHits<T> {
+
+		final SortedIds ids;
+		int size = -1;
+
+		SortedIndexHits(SortedIds ids) {
+			this.ids = ids;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return ids.hasNext();
+		}
+
+		@Override
+		public T next() {
+			return idToEntity( ids.next() );
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<T> iterator() {
+			return this;
+		}
+
+		@Override
+		public int size() {
+			if (size < 0) {
+				size = ids.count();
+			}
+			return size;
+		}
+
+		@Override
+		public void close() {
+			//nothing to do
+		}
+
+		@Override
+		public T getSingle() {
+			if (size() != 1 || !hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return next();
+		}
+
+		@Override
+		public float currentScore() {
+			return 0;
+		}
+
+	}
+
 	NothingIndexHits NOTFOUND = new NothingIndexHits();
 
 	class NothingIndexHits implements IndexHits<T> {
@@ -35,6 +35,81 @@ import java.util.Map;
 public class BerkeleyDbIndexImplementation implements IndexImplementation
 {
 	static final String KEY_PROVIDER = "provider";
+	/**
+	 * Index config key selecting how posting lists are stored, either
+	 * {@link #STORAGE_POSTINGS} (the default) or {@link #STORAGE_DUPLICATES}.
+	 * Only honored when a key database is first created.
+	 */
+	public static final String KEY_STORAGE = "storage";
+	/** One record per value holding all entity ids of that value. */
+	public static final String STORAGE_POSTINGS = "postings";
+	/** One sorted duplicate record per (value, entity id). */
+	public static final String STORAGE_DUPLICATES = "duplicates";
+	/**
+	 * Index config key selecting how values are turned into keys, either
+	 * {@link #KEY_ENCODING_TYPED}, which new indexes get by default, or
+	 * {@link #KEY_ENCODING_STRING} which is what indexes without this
+	 * setting were written with.
+	 */
+	public static final String KEY_KEY_ENCODING = "key_encoding";
+	/** Type tagged, byte order sortable keys, see {@link KeyCodec}. */
+	public static final String KEY_ENCODING_TYPED = "typed";
+	/** The string form of every value. */
+	public static final String KEY_ENCODING_STRING = "string";
+	/**
+	 * Index config key enabling a cache of decoded posting lists for the
+	 * index, bounded to the given number of bytes, like <code>"64m"</code>.
+	 * See {@link PostingCache}.
+	 */
+	public static final String KEY_CACHE_SIZE = "cache_size";
+	/**
+	 * Index config key enabling a {@link BloomFilter} per key, sized for the
+	 * given number of values, like <code>"1000000"</code>. Looking up a
+	 * value that was never indexed is then answered from memory.
+	 */
+	public static final String KEY_BLOOM_FILTER = "bloom_filter";
+	/**
+	 * Index config key which, set to <code>"true"</code> when the index is
+	 * created, keeps the values of every entity in a reverse index, needed by
+	 * {@link BerkeleyDbIndex#remove(org.neo4j.graphdb.PropertyContainer)} and
+	 * {@link BerkeleyDbIndex#remove(org.neo4j.graphdb.PropertyContainer, String)}.
+	 * The batch inserter index keeps it too.
+	 */
+	public static final String KEY_REVERSE_INDEX = "reverse_index";
+	/**
+	 * Batch inserter index config key which, set to <code>"true"</code>,
+	 * leaves what is added in the sort buffers of {@link BulkLoader} until
+	 * {@link org.neo4j.graphdb.index.BatchInserterIndex#flush()} or shutdown,
+	 * which load one key per thread. Added values are not visible to
+	 * {@link org.neo4j.graphdb.index.BatchInserterIndex#get(String, Object)}
+	 * before that. Otherwise a get first loads its key.
+	 */
+	public static final String KEY_BULK_LOAD = "bulk_load";
+	/**
+	 * Batch inserter index config key bounding the memory used to sort the
+	 * values of each key in a bulk load, like <code>"64m"</code>. The bound
+	 * is per key, every key added to has a buffer of its own, so the index
+	 * can use this times its number of keys. What does not fit is sorted in
+	 * runs on disk.
+	 */
+	public static final String KEY_BULK_BUFFER_SIZE = "bulk_buffer_size";
+	/**
+	 * Batch inserter index config key limiting the number of keys loaded at
+	 * the same time, by default the number of processors.
+	 */
+	public static final String KEY_BULK_THREADS = "bulk_threads";
+	/**
+	 * Batch inserter index config key, <code>"true"</code> by default,
+	 * opening key databases deferred-write with checkpoints and log cleaning
+	 * paused. What is inserted is only durable after
+	 * {@link org.neo4j.graphdb.index.BatchInserterIndex#flush()} or shutdown.
+	 */
+	public static final String KEY_BATCH_DEFERRED_WRITE = "batch_deferred_write";
+	/**
+	 * Batch inserter index config key giving the percentage of the heap used
+	 * as the cache shared by all key databases, 50 by default.
+	 */
+	public static final String KEY_BATCH_CACHE_PERCENT = "batch_cache_percent";
 
 	public static final String SERVICE_NAME = "berkeleydb-je";
 	public static final Map<String, String> DEFAULT_CONFIG = Collections.unmodifiableMap( MapUtil.stringMap(
@@ -102,7 +177,21 @@ public class BerkeleyDbIndexImplementation implements IndexImplementation
 	@Override
 	public Map<String, String> fillInDefaults( Map<String, String> config )
 	{
-		return config;
+		return withDefaults( config );
+	}
+
+	/**
+	 * The defaults of new indexes, also for those created by
+	 * {@link BerkeleyDbBatchInserterIndexProvider}.
+	 */
+	static Map<String, String> withDefaults( Map<String, String> config )
+	{
+		Map<String, String> result = config != null ? new HashMap<String, String>( config ) : new HashMap<String, String>();
+		if ( !result.containsKey( KEY_KEY_ENCODING ) )
+		{
+			result.put( KEY_KEY_ENCODING, KEY_ENCODING_TYPED );
+		}
+		return result;
 	}
 
 	@Override
@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.PropertyContainer;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.kernel.AbstractGraphDatabase;
+import org.neo4j.kernel.impl.nioneo.store.InvalidRecordException;
+import org.neo4j.kernel.impl.nioneo.store.NeoStore;
+import org.neo4j.kernel.impl.nioneo.store.PropertyBlock;
+import org.neo4j.kernel.impl.nioneo.store.PropertyIndexData;
+import org.neo4j.kernel.impl.nioneo.store.PropertyIndexStore;
+import org.neo4j.kernel.impl.nioneo.store.PropertyRecord;
+import org.neo4j.kernel.impl.nioneo.store.PropertyStore;
+import org.neo4j.kernel.impl.nioneo.store.Record;
+
+/**
+ * Indexes the current property values of all nodes or relationships of a
+ * running database, for keys added to an index after the entities were
+ * created.
+ * <p>
+ * The id space is split into partitions scanned by a pool of threads, each
+ * sorting what it reads into runs per key. The node or relationship records
+ * and their property records are read straight from the store, so entities
+ * are neither loaded nor cached. The runs of a key are then merged
+ * and written one posting list per value, in key order. Entries already in
+ * the index are kept. The rebuild is not logged, and entities changed while
+ * it runs may or may not be reflected, so it is best run before the key is
+ * in use; running it again is harmless.
+ */
+public class BerkeleyDbIndexRebuild {
+
+	// partitions per thread, so that threads finishing early take over work
+	private static final int PARTITIONS_PER_THREAD = 4;
+
+	private final int threads;
+
+	private final long bufferSize;
+
+	private final PrintStream progress;
+
+
+	public BerkeleyDbIndexRebuild() {
+		this( Runtime.getRuntime().availableProcessors(), 64L << 20, System.out );
+	}
+
+
+	/**
+	 * @param threads the number of threads scanning the store.
+	 * @param bufferSize the memory used for sorting, shared by all threads.
+	 * @param progress where progress and throughput are reported, or
+	 *        <code>null</code>.
+	 */
+	public BerkeleyDbIndexRebuild( int threads, long bufferSize, PrintStream progress ) {
+		this.threads = Math.max( 1, threads );
+		this.bufferSize = bufferSize;
+		this.progress = progress;
+	}
+
+
+	/**
+	 * Adds every entity having one of <code>keys</code> to <code>index</code>
+	 * under the value it has for the key.
+	 *
+	 * @return the number of (entity, key) entries found.
+	 */
+	public long rebuild( Index<? extends PropertyContainer> index, String... keys ) {
+		if ( !( index instanceof BerkeleyDbIndex ) ) {
+			throw new IllegalArgumentException( index + " is not a " + BerkeleyDbIndexImplementation.SERVICE_NAME + " index" );
+		}
+		final BerkeleyDbIndex<? extends PropertyContainer> bdbIndex = (BerkeleyDbIndex<? extends PropertyContainer>)index;
+		final String[] rebuilt = keys.clone();
+		final DatabaseHandle[] handles = new DatabaseHandle[rebuilt.length];
+		for ( int k = 0; k < rebuilt.length; k++ ) {
+			handles[k] = bdbIndex.handle( rebuilt[k] );
+		}
+		AbstractGraphDatabase graphDb = (AbstractGraphDatabase)bdbIndex._service.graphDb();
+		final long highId = graphDb.getNodeManager().getHighestPossibleIdInUse( bdbIndex._identifier.itemClass );
+		final NeoStore neoStore = graphDb.getXaDataSourceManager().getNeoStoreDataSource().getNeoStore();
+		final boolean nodes = Node.class.equals( bdbIndex._identifier.itemClass );
+		final Map<Integer, Integer> keyIds = keyIds( neoStore.getPropertyStore(), rebuilt );
+		int partitions = threads * PARTITIONS_PER_THREAD;
+		final long partitionSize = Math.max( 1, ( highId + partitions ) / partitions );
+		final File tempDir = new File( System.getProperty( "java.io.tmpdir" ) );
+		// each running partition has a buffer per key
+		final int partitionBuffer = (int)Math.min( Integer.MAX_VALUE, Math.max( 1 << 16, bufferSize / threads / Math.max( 1, rebuilt.length ) ) );
+		final AtomicLong scanned = new AtomicLong();
+		final AtomicLong entries = new AtomicLong();
+		final long start = System.currentTimeMillis();
+
+		List<List<BulkLoader>> loaders = new ArrayList<List<BulkLoader>>();
+		for ( int k = 0; k < rebuilt.length; k++ ) {
+			loaders.add( Collections.synchronizedList( new ArrayList<BulkLoader>() ) );
+		}
+		final List<List<BulkLoader>> keyLoaders = loaders;
+		ExecutorService executor = Executors.newFixedThreadPool( threads );
+		try {
+			List<Future<Object>> scans = new ArrayList<Future<Object>>();
+			for ( long from = 0; from <= highId; from += partitionSize ) {
+				final long first = from;
+				final long last = Math.min( highId, from + partitionSize - 1 );
+				scans.add( executor.submit( new Callable<Object>() {
+
+					@Override
+					public Object call() throws Exception {
+						BulkLoader[] partition = new BulkLoader[rebuilt.length];
+						for ( int k = 0; k < rebuilt.length; k++ ) {
+							partition[k] = new BulkLoader( tempDir, partitionBuffer );
+						}
+						PropertyStore properties = neoStore.getPropertyStore();
+						long found = 0;
+						for ( long id = first; id <= last; id++ ) {
+							long propertyId;
+							try {
+								propertyId =
+										nodes ? neoStore.getNodeStore().getRecord( id ).getNextProp()
+											: neoStore.getRelationshipStore().getRecord( id ).getNextProp();
+							} catch ( InvalidRecordException e ) {
+								// not in use
+								continue;
+							}
+							try {
+								while ( propertyId != Record.NO_NEXT_PROPERTY.intValue() ) {
+									PropertyRecord record = properties.getRecord( propertyId );
+									for ( PropertyBlock block : record.getPropertyBlocks() ) {
+										Integer k = keyIds.get( block.getKeyIndexId() );
+										if ( null != k ) {
+											Object value = block.getType().getValue( block, properties );
+											partition[k].add( handles[k].indexKey( value ), id );
+											found++;
+										}
+									}
+									propertyId = record.getNextProp();
+								}
+							} catch ( InvalidRecordException e ) {
+								// the entity was deleted while its chain was read
+							}
+						}
+						for ( int k = 0; k < rebuilt.length; k++ ) {
+							partition[k].finish();
+							keyLoaders.get( k ).add( partition[k] );
+						}
+						entries.addAndGet( found );
+						report( bdbIndex, "scanned", scanned.addAndGet( last - first + 1 ), highId + 1, start );
+						return null;
+					}
+				} ) );
+			}
+			await( scans );
+
+			// keys are separate databases, so they are written in parallel
+			List<Future<Object>> writes = new ArrayList<Future<Object>>();
+			for ( int k = 0; k < rebuilt.length; k++ ) {
+				final DatabaseHandle handle = handles[k];
+				final List<BulkLoader> runs = keyLoaders.get( k );
+				writes.add( executor.submit( new Callable<Object>() {
+
+					@Override
+					public Object call() throws Exception {
+						BerkeleyDbDataSource dataSource = bdbIndex._service.dataSource();
+						BulkLoader.load( runs, writer( dataSource, handle ) );
+						List<IndexIdentifier> identifiers = Collections.singletonList( handle.identifier );
+						dataSource.getWriteLock( identifiers );
+						try {
+							dataSource.writeStatistics( handle );
+						} finally {
+							dataSource.releaseWriteLock( identifiers );
+						}
+						return null;
+					}
+				} ) );
+			}
+			await( writes );
+		} finally {
+			executor.shutdown();
+		}
+		report( bdbIndex, "indexed " + entries.get() + " entries,", highId + 1, highId + 1, start );
+		return entries.get();
+	}
+
+
+	/**
+	 * @return the index of the rebuilt key by property key id. A key may
+	 *         have been given more than one id.
+	 */
+	private static Map<Integer, Integer> keyIds( PropertyStore properties, String[] keys ) {
+		PropertyIndexStore indexStore = properties.getIndexStore();
+		Map<Integer, Integer> result = new HashMap<Integer, Integer>();
+		for ( PropertyIndexData data : indexStore.getPropertyIndexes( (int)indexStore.getHighId() ) ) {
+			for ( int k = 0; k < keys.length; k++ ) {
+				if ( keys[k].equals( data.getValue() ) ) {
+					result.put( data.getKeyId(), k );
+				}
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * Writes through the data source, which keeps statistics, caches, bloom
+	 * filters and the reverse index in step, under the write lock of the
+	 * index one value at a time so that commits are not held up for long.
+	 */
+	private static BulkLoader.Writer writer( final BerkeleyDbDataSource dataSource, final DatabaseHandle handle ) {
+		final List<IndexIdentifier> identifiers = Collections.singletonList( handle.identifier );
+		return new BulkLoader.Writer() {
+
+			private int written;
+
+
+			@Override
+			public void write( byte[] indexKey, long[] ids ) {
+				dataSource.getWriteLock( identifiers );
+				try {
+					dataSource.addEntry( handle, ids, indexKey );
+					if ( ++written % 10000 == 0 ) {
+						dataSource.writeStatistics( handle );
+					}
+				} finally {
+					dataSource.releaseWriteLock( identifiers );
+				}
+			}
+		};
+	}
+
+
+	private static void await( List<Future<Object>> tasks ) {
+		try {
+			for ( Future<Object> task : tasks ) {
+				task.get();
+			}
+		} catch ( ExecutionException e ) {
+			throw new RuntimeException( e.getCause() );
+		} catch ( InterruptedException e ) {
+			throw new RuntimeException( e );
+		}
+	}
+
+
+	private void report( BerkeleyDbIndex<?> index, String what, long done, long total, long start ) {
+		if ( null == progress ) {
+			return;
+		}
+		long time = Math.max( 1, System.currentTimeMillis() - start );
+		progress.println( "rebuild " + index._identifier + ": " + what + " " + done + " of " + total + " ids in " + time
+				+ " ms, " + ( done * 1000 / time ) + " ids/s" );
+	}
+}
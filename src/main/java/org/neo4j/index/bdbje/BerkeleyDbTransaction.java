@@ -22,6 +22,7 @@ package org.neo4j.index.bdbje;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -31,18 +32,46 @@ import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.index.bdbje.BerkeleyDbCommand.AddCommand;
 import org.neo4j.index.bdbje.BerkeleyDbCommand.CreateCommand;
+import org.neo4j.index.bdbje.BerkeleyDbCommand.DeleteCommand;
 import org.neo4j.index.bdbje.BerkeleyDbCommand.RemoveCommand;
 import org.neo4j.kernel.impl.transaction.xaframework.XaCommand;
 import org.neo4j.kernel.impl.transaction.xaframework.XaLogicalLog;
 import org.neo4j.kernel.impl.transaction.xaframework.XaTransaction;
 
-import com.sleepycat.je.Database;
-
 class BerkeleydbTransaction extends XaTransaction
 {
+	/**
+	 * Orders commands by key and value so that one (key, value) is written once
+	 * per commit and key databases are written in order, see
+	 * {@link GroupCommit}. Create commands go first, delete commands last.
+	 */
+	static final Comparator<BerkeleyDbCommand> COMMAND_ORDER = new Comparator<BerkeleyDbCommand>()
+	{
+		@Override
+		public int compare( BerkeleyDbCommand o1, BerkeleyDbCommand o2 )
+		{
+			boolean create1 = o1 instanceof CreateCommand;
+			boolean create2 = o2 instanceof CreateCommand;
+			if ( create1 || create2 )
+			{
+				return create1 == create2 ? 0 : ( create1 ? -1 : 1 );
+			}
+			boolean delete1 = o1 instanceof DeleteCommand;
+			boolean delete2 = o2 instanceof DeleteCommand;
+			if ( delete1 || delete2 )
+			{
+				return delete1 == delete2 ? 0 : ( delete1 ? 1 : -1 );
+			}
+			int result = o1._key.compareTo( o2._key );
+			return result != 0 ? result : KeyCodec.compare( o1._value, o2._value );
+		}
+	};
+
 	private final Map<IndexIdentifier, TxDataBoth> txData =
 			new HashMap<IndexIdentifier, TxDataBoth>();
 	private final BerkeleyDbDataSource dataSource;
+	// an index delete has to be logged even without any other change
+	private boolean deletes;
 
 	private final Map<IndexIdentifier,Collection<BerkeleyDbCommand>> commandMap =
 			new HashMap<IndexIdentifier,Collection<BerkeleyDbCommand>>();
@@ -130,6 +159,24 @@ class BerkeleydbTransaction extends XaTransaction
 		return ids != null ? ids : Collections.<Long>emptySet();
 			}
 
+	<T extends PropertyContainer> Map<Object, Set<Long>> getRemovedValues( BerkeleyDbIndex<T> index, String key )
+	{
+		TxData removed = removedTxDataOrNull( index );
+		return removed != null ? removed.getValues( key ) : Collections.<Object, Set<Long>>emptyMap();
+	}
+
+	<T extends PropertyContainer> Map<Object, Set<Long>> getAddedValues( BerkeleyDbIndex<T> index, String key )
+	{
+		TxData added = addedTxDataOrNull( index );
+		return added != null ? added.getValues( key ) : Collections.<Object, Set<Long>>emptyMap();
+	}
+
+	<T extends PropertyContainer> Set<String> getAddedKeys( BerkeleyDbIndex<T> index )
+	{
+		TxData added = addedTxDataOrNull( index );
+		return added != null ? added.getKeys() : Collections.<String>emptySet();
+	}
+
 	private <T extends PropertyContainer> TxData addedTxDataOrNull( BerkeleyDbIndex<T> index )
 	{
 		TxDataBoth data = getTxData( index, false );
@@ -164,56 +211,15 @@ class BerkeleydbTransaction extends XaTransaction
 	@Override
 	protected void doCommit()
 	{
-		dataSource.getWriteLock();
 		try
 		{
-			for ( Map.Entry<IndexIdentifier, Collection<BerkeleyDbCommand>> entry :
-				commandMap.entrySet() )
-			{
-				IndexIdentifier identifier = entry.getKey();
-				Collection<BerkeleyDbCommand> commandList = entry.getValue();
-				for ( BerkeleyDbCommand command : commandList )
-				{
-					if ( command instanceof CreateCommand )
-					{
-						dataSource.indexStore.setIfNecessary(
-								command._indexId.itemClass,
-								command._indexId.indexName,
-								((CreateCommand) command)._config );
-						continue;
-					}
-
-					long[] entityIds = command._entityIds;
-					String key = command._key;
-					String value = command._value;
-					Database db = dataSource.getDatabase( identifier, key );
-
-					if ( command instanceof AddCommand ) {
-						dataSource.addEntry( db, identifier, entityIds, key, value );
-
-					} else if ( command instanceof RemoveCommand ) {
-						dataSource.removeEntry( db, identifier, entityIds, key, value );
-
-					} else {
-						throw new RuntimeException( "Unknown command type " + command + ", " + command.getClass() );
-					}
-				}
-				//                dataSource.commit( db );
-			}
+			dataSource.groupCommit.commit( commandMap );
 			closeTxData();
 		}
-		catch ( Exception e )
-		{
-			e.printStackTrace();
-			throw new RuntimeException( e );
-		}
-		catch ( Throwable e )
-		{
-			e.printStackTrace();
-		}
 		finally
 		{
-			dataSource.releaseWriteLock();
+			// waiting putIfAbsent callers find the committed values
+			dataSource.valueLocks.unlockAll( this );
 		}
 	}
 
@@ -229,6 +235,17 @@ class BerkeleydbTransaction extends XaTransaction
 	@Override
 	protected void doPrepare()
 	{
+		for ( Collection<BerkeleyDbCommand> commands : commandMap.values() )
+		{
+			for ( BerkeleyDbCommand command : commands )
+			{
+				if ( command instanceof DeleteCommand )
+				{
+					addCommand( command );
+				}
+			}
+		}
+
 		for ( TxDataBoth _txData : txData.values() )
 		{
 			if ( _txData.add != null )
@@ -241,7 +258,7 @@ class BerkeleydbTransaction extends XaTransaction
 					{
 						AddCommand command = new AddCommand( _txData.index._identifier,
 								ArrayUtil.toPrimitiveLongArray( valueMap.getValue() ), key,
-								valueMap.getKey().toString() );
+								_txData.index.handle( key ).indexKey( valueMap.getKey() ) );
 						addCommand( command );
 						queueCommand( command );
 					}
@@ -262,7 +279,7 @@ class BerkeleydbTransaction extends XaTransaction
 					{
 						RemoveCommand command = new RemoveCommand( txData.index._identifier,
 								ArrayUtil.toPrimitiveLongArray( valueMap.getValue() ), key,
-								valueMap.getKey().toString() );
+								txData.index.handle( key ).indexKey( valueMap.getKey() ) );
 						addCommand( command );
 						queueCommand( command );
 					}
@@ -277,11 +294,17 @@ class BerkeleydbTransaction extends XaTransaction
 		// TODO Auto-generated method stub
 		commandMap.clear();
 		closeTxData();
+		dataSource.valueLocks.unlockAll( this );
 	}
 
 	@Override
 	public boolean isReadOnly()
 	{
+		// completing releases the values locked by putIfAbsent
+		if ( deletes || dataSource.valueLocks.holdsAny( this ) )
+		{
+			return false;
+		}
 		for ( TxDataBoth data : txData.values() )
 		{
 			if ( data.add != null || data.remove != null )
@@ -344,4 +367,10 @@ class BerkeleydbTransaction extends XaTransaction
 	{
 		queueCommand( new CreateCommand( new IndexIdentifier( entityType, indexName ), config ) );
 	}
+
+	<T extends PropertyContainer> void delete( BerkeleyDbIndex<T> index )
+	{
+		queueCommand( new DeleteCommand( index._identifier ) );
+		deletes = true;
+	}
 }
@@ -104,6 +104,11 @@ class BerkeleyDbXaConnection extends XaConnectionHelpImpl implements IndexXaConn
 		getTx().remove( index, entity, key, value );
 	}
 
+	<T extends PropertyContainer> void deleteIndex( BerkeleyDbIndex<T> index )
+	{
+		getTx().delete( index );
+	}
+
 	@Override
 	public void createIndex( Class<? extends PropertyContainer> entityType, String indexName,
 			Map<String, String> config )
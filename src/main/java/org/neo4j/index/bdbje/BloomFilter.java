@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the committed values of one (index, key), see
+ * {@link BerkeleyDbIndexImplementation#KEY_BLOOM_FILTER}. A value the filter
+ * does not contain has never been committed, so looking it up can be
+ * answered without reading the key database.
+ * <p>
+ * Values are added on commit before their records are written, and never
+ * removed, so the filter may claim a removed value but never misses one.
+ * Readers need no lock.
+ */
+class BloomFilter
+{
+	// about 1% false positives at the expected number of values
+	private static final int BITS_PER_VALUE = 10;
+	private static final int HASHES = 7;
+
+	private final AtomicLongArray words;
+	private final long bits;
+
+	BloomFilter( long expectedValues )
+	{
+		this( new AtomicLongArray( words( expectedValues ) ) );
+	}
+
+	private BloomFilter( AtomicLongArray words )
+	{
+		this.words = words;
+		this.bits = 64L * words.length();
+	}
+
+	/**
+	 * @return the number of 64 bit words a filter for that many values has.
+	 */
+	static int words( long expectedValues )
+	{
+		long bits = Math.max( 64, expectedValues * BITS_PER_VALUE );
+		return (int) Math.min( Integer.MAX_VALUE / 8, ( bits + 63 ) / 64 );
+	}
+
+	int words()
+	{
+		return words.length();
+	}
+
+	void add( byte[] indexKey )
+	{
+		long hash = hash( indexKey );
+		long h1 = hash;
+		long h2 = mix( hash ) | 1;
+		for ( int i = 0; i < HASHES; i++ )
+		{
+			long bit = ( ( h1 + i * h2 ) & Long.MAX_VALUE ) % bits;
+			int word = (int) ( bit >>> 6 );
+			long mask = 1L << bit;
+			long current;
+			do
+			{
+				current = words.get( word );
+				if ( ( current & mask ) != 0 )
+				{
+					break;
+				}
+			}
+			while ( !words.compareAndSet( word, current, current | mask ) );
+		}
+	}
+
+	/**
+	 * @return <code>false</code> if the value has definitely never been added.
+	 */
+	boolean mightContain( byte[] indexKey )
+	{
+		long hash = hash( indexKey );
+		long h1 = hash;
+		long h2 = mix( hash ) | 1;
+		for ( int i = 0; i < HASHES; i++ )
+		{
+			long bit = ( ( h1 + i * h2 ) & Long.MAX_VALUE ) % bits;
+			if ( ( words.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	byte[] toBytes()
+	{
+		byte[] data = new byte[8 * words.length()];
+		for ( int i = 0; i < words.length(); i++ )
+		{
+			ArrayUtil.toBytes( words.get( i ), data, 8 * i );
+		}
+		return data;
+	}
+
+	static BloomFilter read( byte[] data )
+	{
+		AtomicLongArray words = new AtomicLongArray( data.length / 8 );
+		for ( int i = 0; i < words.length(); i++ )
+		{
+			words.set( i, ArrayUtil.toLong( data, 8 * i ) );
+		}
+		return new BloomFilter( words );
+	}
+
+	// FNV-1a, finished with a mix so that all bits depend on all bytes
+	private static long hash( byte[] data )
+	{
+		long hash = 0xcbf29ce484222325L;
+		for ( byte b : data )
+		{
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		return mix( hash );
+	}
+
+	private static long mix( long h )
+	{
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
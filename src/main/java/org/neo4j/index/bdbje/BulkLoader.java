@@ -0,0 +1,585 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Bulk load of one key database, used by the batch inserter, see
+ * {@link BerkeleyDbIndexImplementation#KEY_BULK_LOAD}, and by
+ * {@link BerkeleyDbIndexRebuild}.
+ * <p>
+ * Added (value, id) pairs are packed into a buffer without an object per
+ * pair. A full buffer is sorted and written to a temporary file as a run.
+ * {@link #load(Writer)} merges the runs and what is still buffered, and
+ * writes one posting list per value in key order, so the B-tree is appended
+ * to rather than updated at random.
+ */
+class BulkLoader
+{
+	// the initial size of a buffer, it grows up to the configured size
+	private static final int INITIAL_BUFFER = 1 << 16;
+
+	private final File tempDir;
+	private final int bufferSize;
+	private final List<File> runs = new ArrayList<File>();
+	private RunBuffer buffer;
+
+	BulkLoader( File tempDir, int bufferSize )
+	{
+		this.tempDir = tempDir;
+		this.bufferSize = bufferSize;
+		buffer = new RunBuffer( Math.min( INITIAL_BUFFER, bufferSize ) );
+	}
+
+	void add( byte[] indexKey, long id ) throws IOException
+	{
+		if ( !buffer.add( indexKey, id, bufferSize ) )
+		{
+			spill();
+			buffer.add( indexKey, id, Integer.MAX_VALUE );
+		}
+	}
+
+	private void spill() throws IOException
+	{
+		buffer.sort();
+		File run = File.createTempFile( "bdb-run", ".tmp", tempDir );
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( run ), 1 << 16 ) );
+		try
+		{
+			buffer.writeTo( out );
+		}
+		finally
+		{
+			out.close();
+		}
+		runs.add( run );
+		buffer.clear();
+	}
+
+	/**
+	 * Sorts what is buffered into a run on disk, so that this loader holds
+	 * no memory until it is loaded.
+	 */
+	void finish() throws IOException
+	{
+		if ( buffer.size() > 0 )
+		{
+			spill();
+		}
+		buffer = new RunBuffer( 0 );
+	}
+
+	/**
+	 * Writes everything added since the last load, one posting list per value
+	 * in key order.
+	 */
+	void load( Writer writer ) throws IOException
+	{
+		load( Collections.singletonList( this ), writer );
+	}
+
+	/**
+	 * Writes everything added to a number of loaders of the same key, as if
+	 * it had been added to one.
+	 */
+	static void load( List<BulkLoader> loaders, Writer writer ) throws IOException
+	{
+		List<Tuples> sources = new ArrayList<Tuples>();
+		try
+		{
+			for ( BulkLoader loader : loaders )
+			{
+				for ( File run : loader.runs )
+				{
+					sources.add( new RunReader( run ) );
+				}
+				if ( loader.buffer.size() > 0 )
+				{
+					loader.buffer.sort();
+					sources.add( loader.buffer.tuples() );
+				}
+			}
+			if ( !sources.isEmpty() )
+			{
+				write( merge( sources ), writer );
+			}
+		}
+		finally
+		{
+			for ( Tuples source : sources )
+			{
+				source.close();
+			}
+			for ( BulkLoader loader : loaders )
+			{
+				loader.reset();
+			}
+		}
+	}
+
+	private void reset()
+	{
+		for ( File run : runs )
+		{
+			run.delete();
+		}
+		runs.clear();
+		if ( buffer.capacity() > INITIAL_BUFFER || buffer.capacity() == 0 )
+		{
+			buffer = new RunBuffer( Math.min( INITIAL_BUFFER, bufferSize ) );
+		}
+		else
+		{
+			// loads between adds keep their small buffer
+			buffer.clear();
+		}
+	}
+
+	private static void write( Tuples tuples, Writer writer ) throws IOException
+	{
+		long[] ids = new long[16];
+		int count = 0;
+		byte[] current = null;
+		while ( tuples.next() )
+		{
+			if ( current == null || !Arrays.equals( current, tuples.key() ) )
+			{
+				if ( current != null )
+				{
+					writer.write( current, Arrays.copyOf( ids, count ) );
+				}
+				current = tuples.key();
+				count = 0;
+			}
+			long id = tuples.id();
+			if ( count > 0 && ids[count - 1] == id )
+			{
+				continue;
+			}
+			if ( count == ids.length )
+			{
+				ids = Arrays.copyOf( ids, count * 2 );
+			}
+			ids[count++] = id;
+		}
+		if ( current != null )
+		{
+			writer.write( current, Arrays.copyOf( ids, count ) );
+		}
+	}
+
+	/**
+	 * Where the posting lists of a load go.
+	 */
+	interface Writer
+	{
+		/**
+		 * @param ids the sorted ids added to the value, not including what
+		 *        is already stored for it.
+		 */
+		void write( byte[] indexKey, long[] ids );
+	}
+
+	/**
+	 * @return a writer merging posting lists into a key database that
+	 *         nothing else writes to meanwhile.
+	 */
+	static Writer into( final Database db )
+	{
+		// a first load into an empty database need not read anything back
+		final boolean empty = isEmpty( db );
+		return new Writer()
+		{
+			@Override
+			public void write( byte[] indexKey, long[] ids )
+			{
+				DatabaseEntry key = new DatabaseEntry( indexKey );
+				if ( !empty )
+				{
+					DatabaseEntry existing = new DatabaseEntry();
+					if ( db.get( null, key, existing, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS )
+					{
+						ids = ArrayUtil.include( Postings.decode( existing.getData() ), ids );
+					}
+				}
+				db.put( null, key, new DatabaseEntry( Postings.encode( ids ) ) );
+			}
+		};
+	}
+
+	static boolean isEmpty( Database db )
+	{
+		Cursor cursor = db.openCursor( null, null );
+		try
+		{
+			DatabaseEntry key = new DatabaseEntry();
+			DatabaseEntry data = new DatabaseEntry();
+			data.setPartial( 0, 0, true );
+			return cursor.getNext( key, data, LockMode.READ_UNCOMMITTED ) != OperationStatus.SUCCESS;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
+	private static Tuples merge( List<Tuples> sources ) throws IOException
+	{
+		final PriorityQueue<Tuples> queue = new PriorityQueue<Tuples>( Math.max( 1, sources.size() ), ORDER );
+		for ( Tuples source : sources )
+		{
+			if ( source.next() )
+			{
+				queue.add( source );
+			}
+		}
+		return new Tuples()
+		{
+			private Tuples current;
+
+			@Override
+			public boolean next() throws IOException
+			{
+				if ( current != null && current.next() )
+				{
+					queue.add( current );
+				}
+				current = queue.poll();
+				return current != null;
+			}
+
+			@Override
+			public byte[] key()
+			{
+				return current.key();
+			}
+
+			@Override
+			public long id()
+			{
+				return current.id();
+			}
+
+			@Override
+			public void close()
+			{
+				// the sources are closed by the caller
+			}
+		};
+	}
+
+	private static final Comparator<Tuples> ORDER = new Comparator<Tuples>()
+	{
+		@Override
+		public int compare( Tuples o1, Tuples o2 )
+		{
+			int result = KeyCodec.compare( o1.key(), o2.key() );
+			if ( result != 0 )
+			{
+				return result;
+			}
+			return o1.id() < o2.id() ? -1 : ( o1.id() == o2.id() ? 0 : 1 );
+		}
+	};
+
+	/**
+	 * Sorted (value, id) pairs, positioned before the first one.
+	 */
+	interface Tuples
+	{
+		boolean next() throws IOException;
+
+		byte[] key();
+
+		long id();
+
+		void close();
+	}
+
+	/**
+	 * (value, id) pairs packed as key length, key and id into one array, with
+	 * the offset of every pair in another, which is what gets sorted.
+	 * <p>
+	 * The arrays are on the heap on purpose. They hold no references, so the
+	 * collector does not trace them, and every key leaves as a
+	 * <code>byte[]</code> for a {@link DatabaseEntry} anyway. A direct
+	 * buffer would add a copy per key and a bounds checked call per compared
+	 * byte, and would only be freed when collected.
+	 */
+	static final class RunBuffer
+	{
+		private byte[] data;
+		private int used;
+		private int[] offsets = new int[1024];
+		private int count;
+
+		RunBuffer( int initialSize )
+		{
+			data = new byte[initialSize];
+		}
+
+		/**
+		 * @return <code>false</code> if the pair would not fit in
+		 *         <code>maxSize</code> bytes and the buffer is not empty.
+		 */
+		boolean add( byte[] key, long id, int maxSize )
+		{
+			int length = 4 + key.length + 8;
+			long size = (long) used + length + 4L * ( count + 1 );
+			if ( size > maxSize && count > 0 )
+			{
+				return false;
+			}
+			if ( used + length > data.length )
+			{
+				// doubling, but not past what maxSize leaves next to the offsets
+				long grown = Math.min( 2L * data.length, (long) maxSize - 4L * ( count + 1 ) );
+				data = Arrays.copyOf( data, (int) Math.min( Integer.MAX_VALUE, Math.max( used + length, grown ) ) );
+			}
+			if ( count == offsets.length )
+			{
+				// a pair takes at least 16 bytes of maxSize, with its offset
+				offsets = Arrays.copyOf( offsets, Math.max( count + 1, Math.min( count * 2, maxSize / 16 ) ) );
+			}
+			offsets[count++] = used;
+			writeInt( key.length, data, used );
+			System.arraycopy( key, 0, data, used + 4, key.length );
+			ArrayUtil.toBytes( id, data, used + 4 + key.length );
+			used += length;
+			return true;
+		}
+
+		int size()
+		{
+			return count;
+		}
+
+		int capacity()
+		{
+			return data.length;
+		}
+
+		void clear()
+		{
+			used = 0;
+			count = 0;
+		}
+
+		/**
+		 * Sorts by key, then id, with a bottom up merge sort of the offsets.
+		 */
+		void sort()
+		{
+			int[] from = offsets;
+			int[] to = new int[offsets.length];
+			for ( int width = 1; width < count; width *= 2 )
+			{
+				for ( int low = 0; low < count; low += 2 * width )
+				{
+					int middle = Math.min( low + width, count );
+					int high = Math.min( low + 2 * width, count );
+					int i = low;
+					int j = middle;
+					for ( int k = low; k < high; k++ )
+					{
+						if ( i < middle && ( j >= high || compare( from[i], from[j] ) <= 0 ) )
+						{
+							to[k] = from[i++];
+						}
+						else
+						{
+							to[k] = from[j++];
+						}
+					}
+				}
+				int[] swap = from;
+				from = to;
+				to = swap;
+			}
+			offsets = from;
+		}
+
+		private int compare( int a, int b )
+		{
+			int lengthA = readInt( data, a );
+			int lengthB = readInt( data, b );
+			int length = Math.min( lengthA, lengthB );
+			for ( int i = 0; i < length; i++ )
+			{
+				int result = ( data[a + 4 + i] & 0xFF ) - ( data[b + 4 + i] & 0xFF );
+				if ( result != 0 )
+				{
+					return result;
+				}
+			}
+			if ( lengthA != lengthB )
+			{
+				return lengthA - lengthB;
+			}
+			long idA = ArrayUtil.toLong( data, a + 4 + lengthA );
+			long idB = ArrayUtil.toLong( data, b + 4 + lengthB );
+			return idA < idB ? -1 : ( idA == idB ? 0 : 1 );
+		}
+
+		void writeTo( DataOutputStream out ) throws IOException
+		{
+			for ( int i = 0; i < count; i++ )
+			{
+				int offset = offsets[i];
+				out.write( data, offset, 4 + readInt( data, offset ) + 8 );
+			}
+		}
+
+		Tuples tuples()
+		{
+			return new Tuples()
+			{
+				private int position = -1;
+				private byte[] key;
+
+				@Override
+				public boolean next()
+				{
+					key = null;
+					return ++position < count;
+				}
+
+				@Override
+				public byte[] key()
+				{
+					if ( key == null )
+					{
+						int offset = offsets[position];
+						key = Arrays.copyOfRange( data, offset + 4, offset + 4 + readInt( data, offset ) );
+					}
+					return key;
+				}
+
+				@Override
+				public long id()
+				{
+					int offset = offsets[position];
+					return ArrayUtil.toLong( data, offset + 4 + readInt( data, offset ) );
+				}
+
+				@Override
+				public void close()
+				{
+					// nothing to release
+				}
+			};
+		}
+
+		private static void writeInt( int value, byte[] target, int offset )
+		{
+			target[offset] = (byte) ( value >>> 24 );
+			target[offset + 1] = (byte) ( value >>> 16 );
+			target[offset + 2] = (byte) ( value >>> 8 );
+			target[offset + 3] = (byte) value;
+		}
+
+		private static int readInt( byte[] source, int offset )
+		{
+			return ( ( source[offset] & 0xFF ) << 24 ) | ( ( source[offset + 1] & 0xFF ) << 16 )
+					| ( ( source[offset + 2] & 0xFF ) << 8 ) | ( source[offset + 3] & 0xFF );
+		}
+	}
+
+	/**
+	 * Reads back a run written by {@link RunBuffer#writeTo(DataOutputStream)}.
+	 */
+	static final class RunReader implements Tuples
+	{
+		private final DataInputStream in;
+		private byte[] key;
+		private long id;
+
+		RunReader( File run ) throws IOException
+		{
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( run ), 1 << 16 ) );
+		}
+
+		@Override
+		public boolean next() throws IOException
+		{
+			int length;
+			try
+			{
+				length = in.readInt();
+			}
+			catch ( EOFException e )
+			{
+				return false;
+			}
+			key = new byte[length];
+			in.readFully( key );
+			id = in.readLong();
+			return true;
+		}
+
+		@Override
+		public byte[] key()
+		{
+			return key;
+		}
+
+		@Override
+		public long id()
+		{
+			return id;
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				in.close();
+			}
+			catch ( IOException e )
+			{
+				// only read from
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+/**
+ * Conjunction or disjunction of index lookups, for
+ * {@link BerkeleyDbIndex#query(Object)}. Clauses are {@link #term(String, Object)}s
+ * or other compound queries, for example
+ * <pre>
+ * CompoundQuery.and( CompoundQuery.term( "type", "X" ), CompoundQuery.term( "region", "Y" ) )
+ * </pre>
+ * Hits are returned in ascending id order.
+ */
+public class CompoundQuery {
+
+	boolean _and;
+	Object[] _clauses;
+
+	private CompoundQuery(boolean and, Object[] clauses) {
+		if (clauses.length == 0) {
+			throw new IllegalArgumentException( "No clauses" );
+		}
+		for (Object clause : clauses) {
+			if (!(clause instanceof Term || clause instanceof CompoundQuery)) {
+				throw new IllegalArgumentException( "Unsupported clause " + clause );
+			}
+		}
+		_and = and;
+		_clauses = clauses.clone();
+	}
+
+	/**
+	 * @return the query of the entities matching all <code>clauses</code>.
+	 * @throws IllegalArgumentException if there are no clauses.
+	 */
+	public static CompoundQuery and(Object... clauses) {
+		return new CompoundQuery( true, clauses );
+	}
+
+	/**
+	 * @return the query of the entities matching any of the <code>clauses</code>.
+	 * @throws IllegalArgumentException if there are no clauses.
+	 */
+	public static CompoundQuery or(Object... clauses) {
+		return new CompoundQuery( false, clauses );
+	}
+
+	/**
+	 * @return a clause matching the entities indexed with <code>value</code>,
+	 *         or with the values matching a {@link RangeQuery},
+	 *         {@link PrefixQuery} or {@link PagedQuery}.
+	 */
+	public static Term term(String key, Object value) {
+		return new Term( key, value );
+	}
+
+	public static class Term {
+
+		String _key;
+		Object _value;
+
+		Term(String key, Object value) {
+			_key = key;
+			_value = value;
+		}
+
+	}
+
+}
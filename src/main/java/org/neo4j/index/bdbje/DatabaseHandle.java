@@ -0,0 +1,322 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.Database;
+import com.sleepycat.persist.EntityStore;
+
+/**
+ * The databases of one (index, key), opened lazily and at most once no matter
+ * how many threads ask for them at the same time.
+ */
+class DatabaseHandle
+{
+	final IndexIdentifier identifier;
+	final String key;
+	private final BerkeleyDbDataSource dataSource;
+	private final boolean typedKeys;
+	// null unless the index is configured with a cache
+	final PostingCache cache;
+	// whether commits record the values of entities, see BerkeleyDbDataSource.getEntityValues
+	final boolean reverseIndex;
+	// expected number of values, 0 unless the index is configured with a bloom filter
+	private final long bloomFilterValues;
+
+	private volatile Database database;
+	private boolean duplicates;
+	private volatile EntityStore entityStore;
+	private volatile Database statisticsDatabase;
+	private volatile KeyStatistics statistics;
+	private volatile BloomFilter bloomFilter;
+	private volatile boolean deleted;
+	// cursors which outlive the read lock they were opened under, see openCursor
+	private final Set<Cursor> cursors = Collections.newSetFromMap( new ConcurrentHashMap<Cursor, Boolean>() );
+
+	DatabaseHandle( BerkeleyDbDataSource dataSource, IndexIdentifier identifier, String key )
+	{
+		this.dataSource = dataSource;
+		this.identifier = identifier;
+		this.key = key;
+		typedKeys = dataSource.configuredTypedKeys( identifier );
+		cache = dataSource.cache( identifier );
+		bloomFilterValues = dataSource.configuredBloomFilter( identifier );
+		reverseIndex = dataSource.configuredReverseIndex( identifier );
+	}
+
+	/**
+	 * @return the key of <code>value</code> in this key database.
+	 */
+	byte[] indexKey( Object value )
+	{
+		return typedKeys ? KeyCodec.encode( value ) : BerkeleyDbDataSource.indexKey( key, value );
+	}
+
+	boolean hasTypedKeys()
+	{
+		return typedKeys;
+	}
+
+	/**
+	 * @return a value with the key <code>indexKey</code> in this key database.
+	 */
+	Object value( byte[] indexKey )
+	{
+		return typedKeys ? KeyCodec.decode( indexKey ) : new String( indexKey );
+	}
+
+	Database database()
+	{
+		Database result = database;
+		if ( result == null )
+		{
+			synchronized ( this )
+			{
+				result = database;
+				if ( result == null )
+				{
+					result = dataSource.createDB( identifier, key );
+					duplicates = BerkeleyDbDataSource.isDuplicates( result );
+					database = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Opens a cursor on the key database which may be kept open after the
+	 * read lock of the index is released. Closing the handle closes it too,
+	 * so it must only be moved while holding the read lock, and after
+	 * checking {@link #isOpen(Cursor)}.
+	 */
+	Cursor openCursor()
+	{
+		Cursor cursor = database().openCursor( null, CursorConfig.READ_UNCOMMITTED );
+		cursors.add( cursor );
+		return cursor;
+	}
+
+	/**
+	 * @return <code>false</code> if the cursor was closed, by
+	 *         {@link #closeCursor(Cursor)} or because the handle was.
+	 */
+	boolean isOpen( Cursor cursor )
+	{
+		return cursors.contains( cursor );
+	}
+
+	// synchronized with close(), which must not find the cursor still open
+	synchronized void closeCursor( Cursor cursor )
+	{
+		if ( cursors.remove( cursor ) )
+		{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * @return whether the key database uses the sorted duplicates layout.
+	 */
+	boolean isDuplicates()
+	{
+		database();
+		return duplicates;
+	}
+
+	/**
+	 * @return the database with the {@link KeyStatistics} of this key, in
+	 *         the environment of the key database.
+	 */
+	Database statisticsDatabase()
+	{
+		Database result = statisticsDatabase;
+		if ( result == null )
+		{
+			synchronized ( this )
+			{
+				result = statisticsDatabase;
+				if ( result == null )
+				{
+					result = dataSource.openStatistics( database() );
+					statisticsDatabase = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the statistics of this key, counted once from the key
+	 *         database if they have never been persisted.
+	 */
+	KeyStatistics statistics()
+	{
+		KeyStatistics result = statistics;
+		if ( result == null )
+		{
+			synchronized ( this )
+			{
+				result = statistics;
+				if ( result == null )
+				{
+					result = dataSource.loadStatistics( this );
+					statistics = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return <code>false</code> if <code>indexKey</code> has definitely
+	 *         never been committed, <code>true</code> if it may have been or
+	 *         the index has no {@link BloomFilter}.
+	 */
+	boolean mightContain( byte[] indexKey )
+	{
+		return bloomFilterValues == 0 || bloomFilter().mightContain( indexKey );
+	}
+
+	/**
+	 * Records a value about to be committed, before its record is written.
+	 */
+	void addValue( byte[] indexKey )
+	{
+		if ( bloomFilterValues != 0 )
+		{
+			bloomFilter().add( indexKey );
+		}
+	}
+
+	private BloomFilter bloomFilter()
+	{
+		BloomFilter result = bloomFilter;
+		if ( result == null )
+		{
+			synchronized ( this )
+			{
+				result = bloomFilter;
+				if ( result == null )
+				{
+					result = dataSource.loadBloomFilter( this, bloomFilterValues );
+					bloomFilter = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	EntityStore entityStore()
+	{
+		EntityStore result = entityStore;
+		if ( result == null )
+		{
+			synchronized ( this )
+			{
+				result = entityStore;
+				if ( result == null )
+				{
+					result = dataSource.createEntityStore( identifier, key );
+					entityStore = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Marks the handle as belonging to a deleted index, so that the index
+	 * asks for a new one.
+	 */
+	void delete( boolean closeEnvironment )
+	{
+		deleted = true;
+		close( closeEnvironment );
+	}
+
+	boolean isDeleted()
+	{
+		return deleted;
+	}
+
+	/**
+	 * Closes whatever was opened, and the environment of it unless that is
+	 * the shared one.
+	 */
+	synchronized void close( boolean closeEnvironment )
+	{
+		if ( cache != null )
+		{
+			cache.invalidateAll( this );
+		}
+		if ( statisticsDatabase != null )
+		{
+			if ( statisticsDatabase.getEnvironment().isValid() )
+			{
+				if ( bloomFilter != null )
+				{
+					dataSource.saveBloomFilter( this, bloomFilter );
+				}
+				statisticsDatabase.close();
+			}
+			statisticsDatabase = null;
+			statistics = null;
+			bloomFilter = null;
+		}
+		// a database with open cursors can not be closed
+		for ( Cursor cursor : cursors )
+		{
+			if ( cursors.remove( cursor ) && database != null && database.getEnvironment().isValid() )
+			{
+				cursor.close();
+			}
+		}
+		if ( database != null )
+		{
+			if ( database.getEnvironment().isValid() )
+			{
+				database.close();
+				if ( closeEnvironment )
+				{
+					database.getEnvironment().close();
+				}
+			}
+			database = null;
+		}
+		if ( entityStore != null )
+		{
+			if ( entityStore.getEnvironment().isValid() )
+			{
+				entityStore.close();
+				if ( closeEnvironment )
+				{
+					entityStore.getEnvironment().close();
+				}
+			}
+			entityStore = null;
+		}
+	}
+}
@@ -0,0 +1,353 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.neo4j.index.bdbje.BerkeleyDbCommand.AddCommand;
+import org.neo4j.index.bdbje.BerkeleyDbCommand.CreateCommand;
+import org.neo4j.index.bdbje.BerkeleyDbCommand.DeleteCommand;
+import org.neo4j.index.bdbje.BerkeleyDbCommand.RemoveCommand;
+
+/**
+ * Applies the commands of transactions committing at the same time as one
+ * group.
+ * <p>
+ * A committer queues its commands. If no group being applied touches its
+ * indexes, and no transaction queued before it does either, it becomes a
+ * leader and applies its own commands together with every other queued
+ * transaction free to go, while those wait for it. Groups on disjoint sets
+ * of indexes are applied by concurrent leaders, each holding the write locks
+ * of its own indexes only, and the transactions of an index are applied in
+ * the order they were queued. The changes of a group are merged per (index,
+ * key, value) in commit order, so a value changed by several transactions
+ * has its posting list read and written once, and values are written in key
+ * order under one acquisition of the write locks. A transaction deleting an
+ * index is applied in a group of its own.
+ * <p>
+ * If a group fails, its transactions are applied again one at a time, so that
+ * each only gets its own failure. Adding and removing ids is idempotent, so
+ * what the failed group already wrote is written again unchanged.
+ */
+class GroupCommit
+{
+	private final BerkeleyDbDataSource dataSource;
+	private final LinkedList<Request> queue = new LinkedList<Request>();
+	// the indexes of the groups being applied
+	private final Set<IndexIdentifier> busy = new HashSet<IndexIdentifier>();
+
+	GroupCommit( BerkeleyDbDataSource dataSource )
+	{
+		this.dataSource = dataSource;
+	}
+
+	/**
+	 * Returns once the commands are applied, by this or another thread.
+	 */
+	void commit( Map<IndexIdentifier, Collection<BerkeleyDbCommand>> commands )
+	{
+		Request request = new Request( commands );
+		List<Request> group = null;
+		synchronized ( this )
+		{
+			queue.add( request );
+			boolean interrupted = false;
+			while ( !request.done && ( group = nextGroup( request ) ) == null )
+			{
+				try
+				{
+					wait();
+				}
+				catch ( InterruptedException e )
+				{
+					// the commit can't be abandoned half way
+					interrupted = true;
+				}
+			}
+			if ( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+			if ( request.done )
+			{
+				request.rethrow();
+				return;
+			}
+			queue.removeAll( group );
+			for ( Request member : group )
+			{
+				busy.addAll( member.commands.keySet() );
+			}
+		}
+		try
+		{
+			apply( group );
+		}
+		catch ( Throwable e )
+		{
+			if ( group.size() == 1 )
+			{
+				group.get( 0 ).failure = e;
+			}
+			else
+			{
+				// only the transaction at fault should fail
+				for ( Request member : group )
+				{
+					try
+					{
+						apply( Collections.singletonList( member ) );
+					}
+					catch ( Throwable memberFailure )
+					{
+						member.failure = memberFailure;
+					}
+				}
+			}
+		}
+		synchronized ( this )
+		{
+			for ( Request done : group )
+			{
+				busy.removeAll( done.commands.keySet() );
+				done.done = true;
+			}
+			// waiting committers may lead the next groups
+			notifyAll();
+		}
+		request.rethrow();
+	}
+
+	/**
+	 * @return the group led by the committer of <code>own</code>, or
+	 *         <code>null</code> if it has to wait for others to apply first,
+	 *         or is in a group being applied by another leader.
+	 */
+	private List<Request> nextGroup( Request own )
+	{
+		Set<IndexIdentifier> blocked = new HashSet<IndexIdentifier>( busy );
+		boolean queued = false;
+		for ( Request next : queue )
+		{
+			if ( next == own )
+			{
+				queued = true;
+				break;
+			}
+			blocked.addAll( next.commands.keySet() );
+		}
+		if ( !queued || own.touches( blocked ) )
+		{
+			return null;
+		}
+		List<Request> group = new ArrayList<Request>();
+		if ( own.deletes )
+		{
+			group.add( own );
+			return group;
+		}
+		// a request skipped keeps those after it on the same indexes waiting
+		blocked = new HashSet<IndexIdentifier>( busy );
+		for ( Request next : queue )
+		{
+			if ( next.deletes || next.touches( blocked ) )
+			{
+				blocked.addAll( next.commands.keySet() );
+			}
+			else
+			{
+				group.add( next );
+			}
+		}
+		return group;
+	}
+
+	private void apply( List<Request> group )
+	{
+		Set<IndexIdentifier> identifiers = new LinkedHashSet<IndexIdentifier>();
+		for ( Request request : group )
+		{
+			identifiers.addAll( request.commands.keySet() );
+		}
+		Collection<IndexIdentifier> locked = new ArrayList<IndexIdentifier>( identifiers );
+		dataSource.getWriteLock( locked );
+		try
+		{
+			Map<IndexIdentifier, TreeMap<BerkeleyDbCommand, Change>> changes =
+					new HashMap<IndexIdentifier, TreeMap<BerkeleyDbCommand, Change>>();
+			for ( Request request : group )
+			{
+				merge( request, changes );
+			}
+			for ( Map.Entry<IndexIdentifier, TreeMap<BerkeleyDbCommand, Change>> entry : changes.entrySet() )
+			{
+				IndexIdentifier identifier = entry.getKey();
+				Set<DatabaseHandle> written = new LinkedHashSet<DatabaseHandle>();
+				for ( Map.Entry<BerkeleyDbCommand, Change> value : entry.getValue().entrySet() )
+				{
+					BerkeleyDbCommand command = value.getKey();
+					DatabaseHandle handle = dataSource.getHandle( identifier, command._key );
+					dataSource.updateEntry( handle, value.getValue().added, value.getValue().removed, command._value );
+					written.add( handle );
+				}
+				for ( DatabaseHandle handle : written )
+				{
+					dataSource.writeStatistics( handle );
+				}
+			}
+		}
+		finally
+		{
+			dataSource.releaseWriteLock( locked );
+		}
+	}
+
+	/**
+	 * Folds the commands of a transaction into the changes of the group. The
+	 * last add or remove of an id wins, so the added and removed ids of a
+	 * value never overlap.
+	 */
+	private void merge( Request request, Map<IndexIdentifier, TreeMap<BerkeleyDbCommand, Change>> changes )
+	{
+		for ( Map.Entry<IndexIdentifier, Collection<BerkeleyDbCommand>> entry : request.commands.entrySet() )
+		{
+			IndexIdentifier identifier = entry.getKey();
+			boolean deleted = false;
+			for ( BerkeleyDbCommand command : entry.getValue() )
+			{
+				if ( command instanceof DeleteCommand )
+				{
+					deleted = true;
+				}
+				else if ( command instanceof CreateCommand )
+				{
+					dataSource.indexStore.setIfNecessary( identifier.itemClass, identifier.indexName,
+							( (CreateCommand) command )._config );
+				}
+			}
+			if ( deleted )
+			{
+				// whatever else was done to the index goes with it
+				changes.remove( identifier );
+				dataSource.deleteIndex( identifier );
+				continue;
+			}
+			TreeMap<BerkeleyDbCommand, Change> values = changes.get( identifier );
+			for ( BerkeleyDbCommand command : entry.getValue() )
+			{
+				if ( command instanceof CreateCommand )
+				{
+					continue;
+				}
+				if ( values == null )
+				{
+					values = new TreeMap<BerkeleyDbCommand, Change>( BerkeleydbTransaction.COMMAND_ORDER );
+					changes.put( identifier, values );
+				}
+				Change change = values.get( command );
+				if ( change == null )
+				{
+					change = new Change();
+					values.put( command, change );
+				}
+				if ( command instanceof AddCommand )
+				{
+					change.added = ArrayUtil.include( change.added, command._entityIds );
+					change.removed = ArrayUtil.exclude( change.removed, command._entityIds );
+				}
+				else if ( command instanceof RemoveCommand )
+				{
+					change.removed = ArrayUtil.include( change.removed, command._entityIds );
+					change.added = ArrayUtil.exclude( change.added, command._entityIds );
+				}
+				else
+				{
+					throw new RuntimeException( "Unknown command type " + command + ", " + command.getClass() );
+				}
+			}
+		}
+	}
+
+	private static final class Change
+	{
+		long[] added = BerkeleyDbDataSource.EMPTY_IDS;
+		long[] removed = BerkeleyDbDataSource.EMPTY_IDS;
+	}
+
+	private static final class Request
+	{
+		final Map<IndexIdentifier, Collection<BerkeleyDbCommand>> commands;
+		final boolean deletes;
+		boolean done;
+		Throwable failure;
+
+		Request( Map<IndexIdentifier, Collection<BerkeleyDbCommand>> commands )
+		{
+			this.commands = commands;
+			boolean deletes = false;
+			for ( Collection<BerkeleyDbCommand> indexCommands : commands.values() )
+			{
+				for ( BerkeleyDbCommand command : indexCommands )
+				{
+					deletes |= command instanceof DeleteCommand;
+				}
+			}
+			this.deletes = deletes;
+		}
+
+		boolean touches( Set<IndexIdentifier> identifiers )
+		{
+			for ( IndexIdentifier identifier : commands.keySet() )
+			{
+				if ( identifiers.contains( identifier ) )
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void rethrow()
+		{
+			if ( failure instanceof RuntimeException )
+			{
+				throw (RuntimeException) failure;
+			}
+			if ( failure instanceof Error )
+			{
+				throw (Error) failure;
+			}
+			if ( failure != null )
+			{
+				throw new RuntimeException( failure );
+			}
+		}
+	}
+}
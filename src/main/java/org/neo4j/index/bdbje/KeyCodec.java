@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Encodes index values into keys whose unsigned byte order, which is the
+ * order of the BDB B-tree, matches the natural order of the values.
+ * <p>
+ * Every key starts with a type tag. Integral numbers and dates are stored as
+ * sign-flipped big-endian longs, floating point numbers as sortable IEEE 754
+ * bits, byte arrays as they are and everything else as the UTF-8 bytes of its
+ * string form. An <code>Integer</code> and a <code>Long</code> of the same
+ * value therefore map to the same key, while <code>1</code> and
+ * <code>1.0</code> do not. Keys that are already encoded never go through
+ * {@link #encode(Object)}, they are used as they are.
+ */
+abstract class KeyCodec
+{
+	static final byte LONG = 1;
+	static final byte DOUBLE = 2;
+	static final byte STRING = 3;
+	static final byte BYTES = 4;
+
+	static final Charset UTF_8 = Charset.forName( "UTF-8" );
+
+	/**
+	 * The order of keys in the B-tree, see {@link #compare(byte[], byte[])}.
+	 */
+	static final Comparator<byte[]> ORDER = new Comparator<byte[]>()
+	{
+		@Override
+		public int compare( byte[] a, byte[] b )
+		{
+			return KeyCodec.compare( a, b );
+		}
+	};
+
+	static byte[] encode( Object value )
+	{
+		if ( value instanceof byte[] )
+		{
+			return encodeBytes( (byte[]) value );
+		}
+		if ( value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte )
+		{
+			return encodeLong( ( (Number) value ).longValue() );
+		}
+		if ( value instanceof Double || value instanceof Float )
+		{
+			return encodeDouble( ( (Number) value ).doubleValue() );
+		}
+		if ( value instanceof Date )
+		{
+			return encodeLong( ( (Date) value ).getTime() );
+		}
+		return encodeString( value.toString() );
+	}
+
+	static byte[] encodeLong( long value )
+	{
+		byte[] key = new byte[9];
+		key[0] = LONG;
+		return ArrayUtil.toBytes( value ^ Long.MIN_VALUE, key, 1 );
+	}
+
+	static byte[] encodeDouble( double value )
+	{
+		if ( value == 0.0d )
+		{
+			// -0.0 and 0.0 are equal values
+			value = 0.0d;
+		}
+		long bits = Double.doubleToLongBits( value );
+		bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+		byte[] key = new byte[9];
+		key[0] = DOUBLE;
+		return ArrayUtil.toBytes( bits, key, 1 );
+	}
+
+	static byte[] encodeString( String value )
+	{
+		byte[] bytes = value.getBytes( UTF_8 );
+		byte[] key = new byte[bytes.length + 1];
+		key[0] = STRING;
+		System.arraycopy( bytes, 0, key, 1, bytes.length );
+		return key;
+	}
+
+	static byte[] encodeBytes( byte[] value )
+	{
+		byte[] key = new byte[value.length + 1];
+		key[0] = BYTES;
+		System.arraycopy( value, 0, key, 1, value.length );
+		return key;
+	}
+
+	/**
+	 * Decodes a key back into a <code>Long</code>, <code>Double</code>,
+	 * <code>String</code> or <code>byte[]</code>.
+	 */
+	static Object decode( byte[] key )
+	{
+		switch ( key[0] )
+		{
+		case LONG:
+			return Long.valueOf( ArrayUtil.toLong( key, 1 ) ^ Long.MIN_VALUE );
+		case DOUBLE:
+			long bits = ArrayUtil.toLong( key, 1 );
+			bits = bits < 0 ? bits ^ Long.MIN_VALUE : ~bits;
+			return Double.valueOf( Double.longBitsToDouble( bits ) );
+		case STRING:
+			return new String( key, 1, key.length - 1, UTF_8 );
+		case BYTES:
+			byte[] value = new byte[key.length - 1];
+			System.arraycopy( key, 1, value, 0, value.length );
+			return value;
+		default:
+			throw new IllegalArgumentException( "Unknown key type " + key[0] );
+		}
+	}
+
+	/**
+	 * Compares keys the way the default BDB comparator does.
+	 */
+	static int compare( byte[] a, byte[] b )
+	{
+		int length = Math.min( a.length, b.length );
+		for ( int i = 0; i < length; i++ )
+		{
+			int result = ( a[i] & 0xFF ) - ( b[i] & 0xFF );
+			if ( result != 0 )
+			{
+				return result;
+			}
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Arrays;
+
+/**
+ * An interval of keys in the order of {@link KeyCodec#compare(byte[], byte[])}.
+ * A <code>null</code> bound is open.
+ */
+class KeyRange
+{
+	final byte[] lower;
+	final boolean lowerInclusive;
+	final byte[] upper;
+	final boolean upperInclusive;
+
+	KeyRange( byte[] lower, boolean lowerInclusive, byte[] upper, boolean upperInclusive )
+	{
+		this.lower = lower;
+		this.lowerInclusive = lowerInclusive;
+		this.upper = upper;
+		this.upperInclusive = upperInclusive;
+	}
+
+	/**
+	 * @return the range of all keys starting with <code>prefix</code>.
+	 */
+	static KeyRange prefix( byte[] prefix )
+	{
+		return new KeyRange( prefix, true, successor( prefix ), false );
+	}
+
+	/**
+	 * @return the smallest key greater than every key starting with
+	 *         <code>prefix</code>, or <code>null</code> if there is none.
+	 */
+	static byte[] successor( byte[] prefix )
+	{
+		for ( int i = prefix.length - 1; i >= 0; i-- )
+		{
+			if ( prefix[i] != (byte) 0xFF )
+			{
+				byte[] successor = Arrays.copyOf( prefix, i + 1 );
+				successor[i]++;
+				return successor;
+			}
+		}
+		return null;
+	}
+
+	boolean aboveLower( byte[] key )
+	{
+		if ( lower == null )
+		{
+			return true;
+		}
+		int result = KeyCodec.compare( key, lower );
+		return result > 0 || ( result == 0 && lowerInclusive );
+	}
+
+	boolean belowUpper( byte[] key )
+	{
+		if ( upper == null )
+		{
+			return true;
+		}
+		int result = KeyCodec.compare( key, upper );
+		return result < 0 || ( result == 0 && upperInclusive );
+	}
+
+	boolean contains( byte[] key )
+	{
+		return aboveLower( key ) && belowUpper( key );
+	}
+
+	boolean isEmpty()
+	{
+		if ( lower == null || upper == null )
+		{
+			return false;
+		}
+		int result = KeyCodec.compare( lower, upper );
+		return result > 0 || ( result == 0 && !( lowerInclusive && upperInclusive ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		return ( lowerInclusive ? "[" : "(" ) + Arrays.toString( lower ) + ", " + Arrays.toString( upper )
+				+ ( upperInclusive ? "]" : ")" );
+	}
+}
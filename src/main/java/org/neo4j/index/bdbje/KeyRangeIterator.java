@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.CursorConfig;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Streams the ids of all keys in a {@link KeyRange}, key by key in B-tree
+ * order, with the changes of the current transaction applied. The cursor is
+ * opened up front and closed once the range is exhausted or on
+ * {@link #close()}, and is moved under the read lock of the index. If the
+ * index is deleted meanwhile, the committed ids end where the iterator was.
+ * <p>
+ * Transaction changes are given per encoded key as <code>{ added, removed }</code>.
+ * Ids the transaction added to a key come before the committed ids of it.
+ * At most <code>limit</code> ids are returned.
+ */
+class KeyRangeIterator implements IdIterator
+{
+	private final BerkeleyDbDataSource dataSource;
+	private final DatabaseHandle handle;
+	private final boolean duplicates;
+	private final KeyRange range;
+	private final SortedMap<byte[], long[][]> changes;
+	private final int limit;
+	private int returned;
+	private final Iterator<Map.Entry<byte[], long[][]>> pendingChanges;
+	private Map.Entry<byte[], long[][]> change;
+
+	private Cursor cursor;
+	private final DatabaseEntry key = new DatabaseEntry();
+	private final DatabaseEntry data = new DatabaseEntry();
+	private boolean started;
+	// the cursor sits on a record which has not been read yet
+	private boolean positioned;
+
+	private byte[] currentKey;
+	// committed ids of the current key which are added or removed by the transaction
+	private long[] currentSkip;
+	private IdIterator ids;
+	private long[] skip;
+
+	private boolean fetched;
+	private long next;
+
+	KeyRangeIterator( BerkeleyDbDataSource dataSource, DatabaseHandle handle, KeyRange range,
+			SortedMap<byte[], long[][]> changes, int limit )
+	{
+		this.dataSource = dataSource;
+		this.handle = handle;
+		this.range = range;
+		this.changes = changes;
+		this.limit = limit;
+		this.pendingChanges = changes.entrySet().iterator();
+		this.change = pendingChanges.hasNext() ? pendingChanges.next() : null;
+		this.duplicates = handle.isDuplicates();
+		this.cursor = handle.openCursor();
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if ( !fetched )
+		{
+			if ( returned >= limit )
+			{
+				close();
+				return false;
+			}
+			fetched = fetch();
+		}
+		return fetched;
+	}
+
+	@Override
+	public long next()
+	{
+		if ( !hasNext() )
+		{
+			throw new NoSuchElementException();
+		}
+		fetched = false;
+		returned++;
+		return next;
+	}
+
+	private boolean fetch()
+	{
+		while ( true )
+		{
+			if ( ids != null )
+			{
+				while ( ids.hasNext() )
+				{
+					long id = ids.next();
+					if ( skip == null || Arrays.binarySearch( skip, id ) < 0 )
+					{
+						next = id;
+						return true;
+					}
+				}
+				ids = null;
+			}
+			if ( !nextGroup() )
+			{
+				close();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Moves on to the next run of ids, which is either the ids the
+	 * transaction added to a key or the ids of one committed record.
+	 */
+	private boolean nextGroup()
+	{
+		byte[] committed = nextCommittedKey();
+		if ( change != null && ( committed == null || KeyCodec.compare( change.getKey(), committed ) < 0 ) )
+		{
+			// a key which only this transaction has added to
+			long[][] ids = nextChange();
+			setIds( new Postings.ArrayIterator( ArrayUtil.exclude( ids[0], ids[1] ) ), null );
+			return true;
+		}
+		if ( committed == null )
+		{
+			return false;
+		}
+
+		if ( !Arrays.equals( committed, currentKey ) )
+		{
+			currentKey = committed;
+			currentSkip = null;
+			if ( change != null && Arrays.equals( change.getKey(), committed ) )
+			{
+				long[][] ids = nextChange();
+				currentSkip = ArrayUtil.include( ids[0], ids[1] );
+				// the record stays unread, the committed ids follow the added ones
+				setIds( new Postings.ArrayIterator( ArrayUtil.exclude( ids[0], ids[1] ) ), null );
+				return true;
+			}
+		}
+
+		positioned = false;
+		byte[] value = data.getData();
+		setIds( duplicates
+				? new Postings.ArrayIterator( new long[] { ArrayUtil.toLong( value, 0 ) } )
+				: Postings.iterator( value ), currentSkip );
+		return true;
+	}
+
+	private void setIds( IdIterator ids, long[] skip )
+	{
+		this.ids = ids;
+		this.skip = skip;
+	}
+
+	private long[][] nextChange()
+	{
+		long[][] result = change.getValue();
+		change = pendingChanges.hasNext() ? pendingChanges.next() : null;
+		return result;
+	}
+
+	/**
+	 * @return the key of the unread record in range the cursor is positioned
+	 *         on, or <code>null</code> if there are no more.
+	 */
+	private byte[] nextCommittedKey()
+	{
+		if ( !positioned && cursor != null )
+		{
+			OperationStatus status = OperationStatus.NOTFOUND;
+			dataSource.getReadLock( handle.identifier );
+			try
+			{
+				if ( handle.isOpen( cursor ) )
+				{
+					status = started
+							? cursor.getNext( key, data, LockMode.READ_UNCOMMITTED )
+							: position();
+				}
+			}
+			finally
+			{
+				dataSource.releaseReadLock( handle.identifier );
+			}
+			started = true;
+			if ( status == OperationStatus.SUCCESS && range.belowUpper( key.getData() ) )
+			{
+				positioned = true;
+			}
+			else
+			{
+				closeCursor();
+			}
+		}
+		return positioned ? key.getData() : null;
+	}
+
+	private OperationStatus position()
+	{
+		return position( cursor, key, data );
+	}
+
+	private OperationStatus position( Cursor cursor, DatabaseEntry key, DatabaseEntry data )
+	{
+		if ( range.lower == null )
+		{
+			return cursor.getFirst( key, data, LockMode.READ_UNCOMMITTED );
+		}
+		key.setData( range.lower );
+		OperationStatus status = cursor.getSearchKeyRange( key, data, LockMode.READ_UNCOMMITTED );
+		if ( status == OperationStatus.SUCCESS && !range.lowerInclusive && Arrays.equals( key.getData(), range.lower ) )
+		{
+			status = cursor.getNextNoDup( key, data, LockMode.READ_UNCOMMITTED );
+		}
+		return status;
+	}
+
+	/**
+	 * Counts the ids in the range, up to the limit, with a cursor of its own
+	 * independent of how far this iterator is.
+	 */
+	int count()
+	{
+		long count = 0;
+		// the transaction can take away at most the ids it removed
+		long enough = limit;
+		for ( long[][] ids : changes.values() )
+		{
+			enough += ids[1].length;
+		}
+		dataSource.getReadLock( handle.identifier );
+		try
+		{
+			if ( handle.isDeleted() )
+			{
+				return 0;
+			}
+			Cursor counter = handle.database().openCursor( null, CursorConfig.READ_UNCOMMITTED );
+			try
+			{
+				DatabaseEntry key = new DatabaseEntry();
+				DatabaseEntry data = new DatabaseEntry();
+				OperationStatus status = position( counter, key, data );
+				while ( status == OperationStatus.SUCCESS && range.belowUpper( key.getData() ) && count < enough )
+				{
+					count += duplicates ? counter.count() : Postings.size( data.getData() );
+					status = counter.getNextNoDup( key, data, LockMode.READ_UNCOMMITTED );
+				}
+			}
+			finally
+			{
+				counter.close();
+			}
+
+			for ( Map.Entry<byte[], long[][]> entry : changes.entrySet() )
+			{
+				long[] committedIds = dataSource.readIds( handle, entry.getKey() );
+				long[] ids = ArrayUtil.include( committedIds, entry.getValue()[0] );
+				ids = ArrayUtil.exclude( ids, entry.getValue()[1] );
+				count += ids.length - committedIds.length;
+			}
+		}
+		finally
+		{
+			dataSource.releaseReadLock( handle.identifier );
+		}
+		return (int) Math.min( count, limit );
+	}
+
+	void close()
+	{
+		closeCursor();
+		positioned = false;
+		ids = null;
+		change = null;
+	}
+
+	private void closeCursor()
+	{
+		if ( cursor != null )
+		{
+			handle.closeCursor( cursor );
+			cursor = null;
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+/**
+ * Number of distinct values and of ids of one (index, key), kept in memory
+ * and persisted in the statistics database of the key next to the number of
+ * ids of every value in the sorted duplicates layout, which unlike the
+ * posting list header is not stored with the value itself. The
+ * {@link BloomFilter} of the key is saved there as well while it is closed.
+ * <p>
+ * Updates happen on commit under the write lock of the index, readers see
+ * the committed numbers.
+ */
+class KeyStatistics
+{
+	static final String DATABASE_SUFFIX = "#stats";
+	static final byte[] SUMMARY_KEY = { 0 };
+	private static final byte VALUE_PREFIX = 1;
+	static final byte[] BLOOM_FILTER_KEY = { 2 };
+
+	private volatile long values;
+	private volatile long ids;
+	private boolean dirty;
+
+	KeyStatistics( long values, long ids )
+	{
+		this.values = values;
+		this.ids = ids;
+	}
+
+	long values()
+	{
+		return values;
+	}
+
+	long ids()
+	{
+		return ids;
+	}
+
+	void update( long valueDelta, long idDelta )
+	{
+		if ( valueDelta != 0 || idDelta != 0 )
+		{
+			values += valueDelta;
+			ids += idDelta;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * @return the record to write if there have been updates since the last
+	 *         call, <code>null</code> otherwise.
+	 */
+	byte[] takeDirty()
+	{
+		if ( !dirty )
+		{
+			return null;
+		}
+		dirty = false;
+		return ArrayUtil.toBytes( values, ids );
+	}
+
+	static KeyStatistics read( byte[] record )
+	{
+		return new KeyStatistics( ArrayUtil.toLong( record, 0 ), ArrayUtil.toLong( record, 8 ) );
+	}
+
+	/**
+	 * @return the key of the id count of a value.
+	 */
+	static byte[] valueKey( byte[] indexKey )
+	{
+		byte[] key = new byte[indexKey.length + 1];
+		key[0] = VALUE_PREFIX;
+		System.arraycopy( indexKey, 0, key, 1, indexKey.length );
+		return key;
+	}
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+/**
+ * Query for one page of the entities of a value, in ascending id order.
+ * Either skips <code>offset</code> entities, or continues after the last id
+ * of the previous page, which stays stable while entities are added and
+ * removed in between.
+ */
+public class PagedQuery {
+
+	Object _value;
+	long _afterId;
+	int _offset;
+	int _limit;
+
+	public PagedQuery(Object value, int offset, int limit) {
+		this( value, -1, offset, limit );
+	}
+
+	private PagedQuery(Object value, long afterId, int offset, int limit) {
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException( "Negative offset " + offset + " or limit " + limit );
+		}
+		_value = value;
+		_afterId = afterId;
+		_offset = offset;
+		_limit = limit;
+	}
+
+	/**
+	 * @return the query of the up to <code>limit</code> entities with an id
+	 *         greater than <code>afterId</code>.
+	 */
+	public static PagedQuery after(Object value, long afterId, int limit) {
+		return new PagedQuery( value, afterId, 0, limit );
+	}
+
+}
@@ -0,0 +1,384 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size bounded cache of decoded posting lists of one index, see
+ * {@link BerkeleyDbIndexImplementation#KEY_CACHE_SIZE}.
+ * <p>
+ * Lookups are a plain concurrent map read. Eviction follows W-TinyLFU: new
+ * lists enter a small LRU window, and lists leaving the window only displace
+ * the least recently used list of the main segmented LRU if they have been
+ * asked for more often, as estimated by a count-min sketch. That keeps a
+ * scan over many cold values from flushing the hot ones. Recording an access
+ * is skipped if the policy lock is busy, so readers never wait on it.
+ * <p>
+ * Entries are invalidated on commit under the write lock of the index, and
+ * filled under its read lock, so a stale list is never put back.
+ */
+class PostingCache
+{
+	private static final int QUEUE_NONE = 0;
+	private static final int QUEUE_WINDOW = 1;
+	private static final int QUEUE_PROBATION = 2;
+	private static final int QUEUE_PROTECTED = 3;
+	// object headers, the key and the map entry
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final ConcurrentMap<Key, Node> map = new ConcurrentHashMap<Key, Node>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final FrequencySketch sketch;
+
+	private final long maxWeight;
+	private final long maxWindow;
+	private final long maxProtected;
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+
+	private final Node window = new Node( null, null, 0 );
+	private final Node probation = new Node( null, null, 0 );
+	private final Node protectedQueue = new Node( null, null, 0 );
+
+	PostingCache( long maxBytes )
+	{
+		maxWeight = maxBytes;
+		maxWindow = Math.max( 1, maxBytes / 100 );
+		maxProtected = ( maxBytes - maxWindow ) * 4 / 5;
+		sketch = new FrequencySketch( maxBytes / 256 );
+	}
+
+	/**
+	 * @return the ids of the value, or <code>null</code> if not cached.
+	 */
+	long[] get( DatabaseHandle handle, byte[] indexKey )
+	{
+		Node node = map.get( new Key( handle, indexKey ) );
+		if ( node == null )
+		{
+			return null;
+		}
+		if ( lock.tryLock() )
+		{
+			try
+			{
+				onAccess( node );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return node.ids;
+	}
+
+	void put( DatabaseHandle handle, byte[] indexKey, long[] ids )
+	{
+		long weight = ENTRY_OVERHEAD + indexKey.length + 8L * ids.length;
+		Key key = new Key( handle, indexKey );
+		lock.lock();
+		try
+		{
+			sketch.increment( key.hash );
+			if ( weight > maxWeight - maxWindow || map.containsKey( key ) )
+			{
+				return;
+			}
+			Node node = new Node( key, ids, weight );
+			map.put( key, node );
+			link( window, node, QUEUE_WINDOW );
+			windowWeight += weight;
+			evict();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	void invalidate( DatabaseHandle handle, byte[] indexKey )
+	{
+		Node node = map.remove( new Key( handle, indexKey ) );
+		if ( node != null )
+		{
+			lock.lock();
+			try
+			{
+				unlink( node );
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Drops the lists of one key, or of all keys if <code>handle</code> is
+	 * <code>null</code>.
+	 */
+	void invalidateAll( DatabaseHandle handle )
+	{
+		for ( Node node : map.values() )
+		{
+			if ( handle == null || node.key.handle == handle )
+			{
+				invalidate( node.key.handle, node.key.indexKey );
+			}
+		}
+	}
+
+	long weight()
+	{
+		lock.lock();
+		try
+		{
+			return windowWeight + probationWeight + protectedWeight;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void onAccess( Node node )
+	{
+		sketch.increment( node.key.hash );
+		switch ( node.queue )
+		{
+		case QUEUE_WINDOW:
+			unlink( node );
+			link( window, node, QUEUE_WINDOW );
+			windowWeight += node.weight;
+			break;
+		case QUEUE_PROBATION:
+			// a second access promotes to the protected segment
+			unlink( node );
+			link( protectedQueue, node, QUEUE_PROTECTED );
+			protectedWeight += node.weight;
+			while ( protectedWeight > maxProtected )
+			{
+				Node demoted = protectedQueue.next;
+				unlink( demoted );
+				link( probation, demoted, QUEUE_PROBATION );
+				probationWeight += demoted.weight;
+			}
+			break;
+		case QUEUE_PROTECTED:
+			unlink( node );
+			link( protectedQueue, node, QUEUE_PROTECTED );
+			protectedWeight += node.weight;
+			break;
+		default:
+			// invalidated meanwhile
+		}
+	}
+
+	private void evict()
+	{
+		// lists leaving the window become candidates for the main segments
+		while ( windowWeight > maxWindow )
+		{
+			Node candidate = window.next;
+			unlink( candidate );
+			link( probation, candidate, QUEUE_PROBATION );
+			probationWeight += candidate.weight;
+		}
+		while ( windowWeight + probationWeight + protectedWeight > maxWeight )
+		{
+			Node victim = probation.next != probation ? probation.next : protectedQueue.next;
+			Node candidate = probation.prev;
+			if ( candidate != victim && candidate.queue == QUEUE_PROBATION
+					&& sketch.frequency( candidate.key.hash ) <= sketch.frequency( victim.key.hash ) )
+			{
+				// the newcomer is not asked for more often than the victim
+				victim = candidate;
+			}
+			map.remove( victim.key );
+			unlink( victim );
+		}
+	}
+
+	private void link( Node queue, Node node, int kind )
+	{
+		node.queue = kind;
+		node.prev = queue.prev;
+		node.next = queue;
+		queue.prev.next = node;
+		queue.prev = node;
+	}
+
+	private void unlink( Node node )
+	{
+		switch ( node.queue )
+		{
+		case QUEUE_WINDOW:
+			windowWeight -= node.weight;
+			break;
+		case QUEUE_PROBATION:
+			probationWeight -= node.weight;
+			break;
+		case QUEUE_PROTECTED:
+			protectedWeight -= node.weight;
+			break;
+		default:
+			return;
+		}
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		node.queue = QUEUE_NONE;
+	}
+
+	/**
+	 * Parses a size like <code>"65536"</code>, <code>"512k"</code>,
+	 * <code>"64m"</code> or <code>"1g"</code>.
+	 */
+	static long parseSize( String size )
+	{
+		String value = size.trim().toLowerCase();
+		long unit = 1;
+		char last = value.charAt( value.length() - 1 );
+		if ( last == 'k' || last == 'm' || last == 'g' )
+		{
+			unit = last == 'k' ? 1L << 10 : last == 'm' ? 1L << 20 : 1L << 30;
+			value = value.substring( 0, value.length() - 1 ).trim();
+		}
+		return Long.parseLong( value ) * unit;
+	}
+
+	static final class Key
+	{
+		final DatabaseHandle handle;
+		final byte[] indexKey;
+		final int hash;
+
+		Key( DatabaseHandle handle, byte[] indexKey )
+		{
+			this.handle = handle;
+			this.indexKey = indexKey;
+			this.hash = 31 * System.identityHashCode( handle ) + Arrays.hashCode( indexKey );
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+			{
+				return false;
+			}
+			Key other = (Key) obj;
+			return handle == other.handle && Arrays.equals( indexKey, other.indexKey );
+		}
+	}
+
+	private static final class Node
+	{
+		final Key key;
+		final long[] ids;
+		final long weight;
+		int queue;
+		Node prev = this;
+		Node next = this;
+
+		Node( Key key, long[] ids, long weight )
+		{
+			this.key = key;
+			this.ids = ids;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters, halved periodically so that old
+	 * popularity fades.
+	 */
+	static final class FrequencySketch
+	{
+		private static final int DEPTH = 4;
+		private static final int[] SEEDS = { 0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xC2B2AE35 };
+		private final byte[] counters;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch( long expectedEntries )
+		{
+			int width = 256;
+			while ( width < expectedEntries && width < ( 1 << 22 ) )
+			{
+				width <<= 1;
+			}
+			counters = new byte[DEPTH * width];
+			mask = width - 1;
+			sampleSize = 10 * width;
+		}
+
+		private int index( int hash, int row )
+		{
+			int h = ( hash ^ ( hash >>> 16 ) ) * SEEDS[row];
+			return row * ( mask + 1 ) + ( ( h ^ ( h >>> 15 ) ) & mask );
+		}
+
+		void increment( int hash )
+		{
+			boolean added = false;
+			for ( int row = 0; row < DEPTH; row++ )
+			{
+				int i = index( hash, row );
+				if ( counters[i] < 15 )
+				{
+					counters[i]++;
+					added = true;
+				}
+			}
+			if ( added && ++additions >= sampleSize )
+			{
+				for ( int i = 0; i < counters.length; i++ )
+				{
+					counters[i] >>= 1;
+				}
+				additions /= 2;
+			}
+		}
+
+		int frequency( int hash )
+		{
+			int frequency = 15;
+			for ( int row = 0; row < DEPTH; row++ )
+			{
+				frequency = Math.min( frequency, counters[index( hash, row )] );
+			}
+			return frequency;
+		}
+	}
+}
@@ -0,0 +1,526 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Encoding of the posting list stored as the data of a (key, value) record.
+ * <p>
+ * The legacy format is a plain array of 8 byte big-endian ids. The current
+ * format starts with a version byte, followed by the number of ids and the
+ * ascending ids as varint encoded deltas. Since entity ids are never negative
+ * a legacy list never starts with a byte having the high bit set, which makes
+ * the version byte unambiguous.
+ * <p>
+ * Longer lists use {@link #VERSION_SKIP_LIST}, which adds a skip table after
+ * the number of ids: the number of entries, then for every
+ * {@link #SKIP_INTERVAL} ids the id preceding the block and the byte offset
+ * of its first delta, as fixed width fields. A page deep into the list is
+ * then decoded from the nearest block rather than from the start.
+ */
+abstract class Postings
+{
+	static final byte VERSION_DELTA_VARINT = (byte) 0x81;
+	static final byte VERSION_SKIP_LIST = (byte) 0x82;
+	// ids per block of a list with a skip table
+	static final int SKIP_INTERVAL = 128;
+	// the base id and the offset of a block
+	private static final int SKIP_ENTRY = 12;
+	// the version and the largest count and table size varints
+	private static final int MAX_HEADER = 1 + 5 + 5;
+
+	static boolean isLegacy( byte[] data )
+	{
+		return data.length == 0 || ( data[0] != VERSION_DELTA_VARINT && data[0] != VERSION_SKIP_LIST );
+	}
+
+	/**
+	 * @param ids sorted ascending, without duplicates.
+	 */
+	static byte[] encode( long[] ids )
+	{
+		// short lists are decoded whole anyway
+		int blocks = ids.length >= 2 * SKIP_INTERVAL ? ( ids.length - 1 ) / SKIP_INTERVAL : 0;
+		byte[] buffer = new byte[MAX_HEADER + SKIP_ENTRY * blocks + 10 * ids.length];
+		buffer[0] = blocks > 0 ? VERSION_SKIP_LIST : VERSION_DELTA_VARINT;
+		int pos = writeVarLong( ids.length, buffer, 1 );
+		int table = pos;
+		if ( blocks > 0 )
+		{
+			table = writeVarLong( blocks, buffer, pos );
+			pos = table + SKIP_ENTRY * blocks;
+		}
+		long previous = 0;
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			if ( blocks > 0 && i > 0 && i % SKIP_INTERVAL == 0 )
+			{
+				int entry = table + SKIP_ENTRY * ( i / SKIP_INTERVAL - 1 );
+				ArrayUtil.toBytes( previous, buffer, entry );
+				writeInt( pos, buffer, entry + 8 );
+			}
+			pos = writeVarLong( ids[i] - previous, buffer, pos );
+			previous = ids[i];
+		}
+		byte[] result = new byte[pos];
+		System.arraycopy( buffer, 0, result, 0, pos );
+		return result;
+	}
+
+	static int size( byte[] data )
+	{
+		if ( isLegacy( data ) )
+		{
+			return data.length / 8;
+		}
+		return (int) readVarLong( data, 1 );
+	}
+
+	static long[] decode( byte[] data )
+	{
+		if ( isLegacy( data ) )
+		{
+			return ArrayUtil.toLongArray( data );
+		}
+		long[] result = new long[size( data )];
+		IdIterator ids = iterator( data );
+		for ( int i = 0; i < result.length; i++ )
+		{
+			result[i] = ids.next();
+		}
+		return result;
+	}
+
+	static IdIterator iterator( byte[] data )
+	{
+		return isLegacy( data ) ? new LegacyIterator( data ) : new DeltaIterator( data );
+	}
+
+	/**
+	 * Iterates the ids last to first. The legacy format is read in place,
+	 * the delta format has to be decoded up front.
+	 */
+	static IdIterator reverseIterator( byte[] data )
+	{
+		if ( isLegacy( data ) )
+		{
+			return new ReverseLegacyIterator( data );
+		}
+		return new ReverseArrayIterator( decode( data ) );
+	}
+
+	/**
+	 * @return the offset of the first delta of a list in a delta format.
+	 */
+	private static int deltaStart( byte[] data )
+	{
+		int pos = skipVarLong( data, 1 );
+		if ( data[0] == VERSION_SKIP_LIST )
+		{
+			int blocks = (int) readVarLong( data, pos );
+			pos = skipVarLong( data, pos ) + SKIP_ENTRY * blocks;
+		}
+		return pos;
+	}
+
+	private static void writeInt( int value, byte[] target, int pos )
+	{
+		target[pos] = (byte) ( value >>> 24 );
+		target[pos + 1] = (byte) ( value >>> 16 );
+		target[pos + 2] = (byte) ( value >>> 8 );
+		target[pos + 3] = (byte) value;
+	}
+
+	private static int readInt( byte[] source, int pos )
+	{
+		return ( ( source[pos] & 0xFF ) << 24 ) | ( ( source[pos + 1] & 0xFF ) << 16 ) | ( ( source[pos + 2] & 0xFF ) << 8 )
+				| ( source[pos + 3] & 0xFF );
+	}
+
+	static int writeVarLong( long value, byte[] target, int pos )
+	{
+		while ( ( value & ~0x7FL ) != 0 )
+		{
+			target[pos++] = (byte) ( ( value & 0x7F ) | 0x80 );
+			value >>>= 7;
+		}
+		target[pos++] = (byte) value;
+		return pos;
+	}
+
+	static long readVarLong( byte[] source, int pos )
+	{
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do
+		{
+			b = source[pos++];
+			value |= (long) ( b & 0x7F ) << shift;
+			shift += 7;
+		}
+		while ( b < 0 );
+		return value;
+	}
+
+	static int skipVarLong( byte[] data, int pos )
+	{
+		while ( data[pos++] < 0 )
+		{
+			// continuation byte
+		}
+		return pos;
+	}
+
+	private static boolean hasVarLong( byte[] data, int pos )
+	{
+		while ( pos < data.length )
+		{
+			if ( data[pos++] >= 0 )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Decodes a page of a list in the delta format: up to <code>limit</code>
+	 * ids greater than <code>afterId</code>, after skipping <code>offset</code>
+	 * of those. <code>data</code> may be just the beginning of the list, as
+	 * read with a partial {@link com.sleepycat.je.DatabaseEntry}, which must
+	 * at least contain the header.
+	 *
+	 * @return the page, or <code>null</code> if <code>data</code> ends before
+	 *         the page does.
+	 */
+	static long[] page( byte[] data, long afterId, int offset, int limit )
+	{
+		if ( data[0] == VERSION_SKIP_LIST )
+		{
+			return page( new ArraySource( data ), afterId, offset, limit );
+		}
+		int count = (int) readVarLong( data, 1 );
+		int pos = skipVarLong( data, 1 );
+		long[] page = new long[Math.min( limit, count )];
+		int found = 0;
+		int skipped = 0;
+		long current = 0;
+		for ( int i = 0; i < count && found < page.length; i++ )
+		{
+			if ( !hasVarLong( data, pos ) )
+			{
+				return null;
+			}
+			current += readVarLong( data, pos );
+			pos = skipVarLong( data, pos );
+			if ( current <= afterId )
+			{
+				continue;
+			}
+			if ( skipped < offset )
+			{
+				skipped++;
+				continue;
+			}
+			page[found++] = current;
+		}
+		return found == page.length ? page : Arrays.copyOf( page, found );
+	}
+
+	/**
+	 * Byte ranges of a stored list.
+	 */
+	interface Source
+	{
+		/**
+		 * @return up to <code>length</code> bytes from <code>offset</code>,
+		 *         fewer at the end of the list.
+		 */
+		byte[] read( int offset, int length );
+	}
+
+	static final class ArraySource implements Source
+	{
+		private final byte[] data;
+
+		ArraySource( byte[] data )
+		{
+			this.data = data;
+		}
+
+		@Override
+		public byte[] read( int offset, int length )
+		{
+			int from = Math.min( offset, data.length );
+			return Arrays.copyOfRange( data, from, (int) Math.min( data.length, (long) from + length ) );
+		}
+	}
+
+	/**
+	 * Decodes a page of a list in the {@link #VERSION_SKIP_LIST} format, like
+	 * {@link #page(byte[], long, int, int)}, reading the skip table, the block
+	 * holding <code>afterId</code> and the blocks of the page itself. That
+	 * is proportional to the length of the table and of the page, not to
+	 * how deep into the list the page is.
+	 */
+	static long[] page( Source source, long afterId, int offset, int limit )
+	{
+		byte[] header = source.read( 0, MAX_HEADER );
+		int count = (int) readVarLong( header, 1 );
+		int pos = skipVarLong( header, 1 );
+		int blocks = (int) readVarLong( header, pos );
+		int tableStart = skipVarLong( header, pos );
+		byte[] table = source.read( tableStart, SKIP_ENTRY * blocks );
+		SkipTable skips = new SkipTable( table, tableStart + SKIP_ENTRY * blocks );
+
+		// the last block starting at or before afterId
+		int low = 0;
+		int high = blocks;
+		while ( low < high )
+		{
+			int middle = ( low + high + 1 ) >>> 1;
+			if ( skips.base( middle ) <= afterId )
+			{
+				low = middle;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+		int block = low;
+
+		// the index of the first id after afterId, found within that block
+		int first = block * SKIP_INTERVAL;
+		int blockLength = Math.min( SKIP_INTERVAL, count - first );
+		byte[] window = source.read( skips.offset( block ), 10 * blockLength );
+		long current = skips.base( block );
+		int next = first + blockLength;
+		int at = 0;
+		for ( int i = 0; i < blockLength; i++ )
+		{
+			current += readVarLong( window, at );
+			at = skipVarLong( window, at );
+			if ( current > afterId )
+			{
+				next = first + i;
+				break;
+			}
+		}
+
+		long target = (long) next + offset;
+		if ( target >= count )
+		{
+			return new long[0];
+		}
+		int start = (int) target;
+		long[] page = new long[Math.min( limit, count - start )];
+		block = start / SKIP_INTERVAL;
+		int skip = start - block * SKIP_INTERVAL;
+		window = source.read( skips.offset( block ), (int) Math.min( Integer.MAX_VALUE, 10L * ( skip + page.length ) ) );
+		current = skips.base( block );
+		at = 0;
+		for ( int i = 0; i < skip; i++ )
+		{
+			current += readVarLong( window, at );
+			at = skipVarLong( window, at );
+		}
+		for ( int i = 0; i < page.length; i++ )
+		{
+			current += readVarLong( window, at );
+			at = skipVarLong( window, at );
+			page[i] = current;
+		}
+		return page;
+	}
+
+	private static final class SkipTable
+	{
+		private final byte[] table;
+		private final int deltaStart;
+
+		SkipTable( byte[] table, int deltaStart )
+		{
+			this.table = table;
+			this.deltaStart = deltaStart;
+		}
+
+		// the id preceding a block, from which its deltas count
+		long base( int block )
+		{
+			return block == 0 ? 0 : ArrayUtil.toLong( table, SKIP_ENTRY * ( block - 1 ) );
+		}
+
+		int offset( int block )
+		{
+			return block == 0 ? deltaStart : readInt( table, SKIP_ENTRY * ( block - 1 ) + 8 );
+		}
+	}
+
+	static class DeltaIterator implements IdIterator
+	{
+		private final byte[] data;
+		private int pos;
+		private int remaining;
+		private long current;
+
+		DeltaIterator( byte[] data )
+		{
+			this.data = data;
+			remaining = (int) readVarLong( data, 1 );
+			pos = deltaStart( data );
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return remaining > 0;
+		}
+
+		@Override
+		public long next()
+		{
+			if ( remaining == 0 )
+			{
+				throw new NoSuchElementException();
+			}
+			current += readVarLong( data, pos );
+			pos = skipVarLong( data, pos );
+			remaining--;
+			return current;
+		}
+	}
+
+	static class LegacyIterator implements IdIterator
+	{
+		private final byte[] data;
+		private int pos;
+
+		LegacyIterator( byte[] data )
+		{
+			this.data = data;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return pos + 8 <= data.length;
+		}
+
+		@Override
+		public long next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			long id = ArrayUtil.toLong( data, pos );
+			pos += 8;
+			return id;
+		}
+	}
+
+	static class ReverseLegacyIterator implements IdIterator
+	{
+		private final byte[] data;
+		private int pos;
+
+		ReverseLegacyIterator( byte[] data )
+		{
+			this.data = data;
+			pos = ( data.length / 8 ) * 8;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return pos > 0;
+		}
+
+		@Override
+		public long next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			pos -= 8;
+			return ArrayUtil.toLong( data, pos );
+		}
+	}
+
+	static class ArrayIterator implements IdIterator
+	{
+		private final long[] ids;
+		private int pos;
+
+		ArrayIterator( long[] ids )
+		{
+			this.ids = ids;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return pos < ids.length;
+		}
+
+		@Override
+		public long next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			return ids[pos++];
+		}
+	}
+
+	static class ReverseArrayIterator implements IdIterator
+	{
+		private final long[] ids;
+		private int pos;
+
+		ReverseArrayIterator( long[] ids )
+		{
+			this.ids = ids;
+			pos = ids.length;
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return pos > 0;
+		}
+
+		@Override
+		public long next()
+		{
+			if ( !hasNext() )
+			{
+				throw new NoSuchElementException();
+			}
+			return ids[--pos];
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+/**
+ * Query for all values of a key which start with a prefix, in the order of
+ * the stored keys, optionally returning no more than <code>limit</code> hits.
+ * The prefix is matched against the string form of values.
+ * <p>
+ * A string query ending with a single <code>*</code>, like
+ * <code>"user:1234:*"</code>, is a prefix query as well.
+ */
+public class PrefixQuery {
+
+	String _prefix;
+	int _limit;
+
+	public PrefixQuery(String prefix) {
+		this( prefix, Integer.MAX_VALUE );
+	}
+
+	public PrefixQuery(String prefix, int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException( "Negative limit " + limit );
+		}
+		_prefix = prefix;
+		_limit = limit;
+	}
+
+	/**
+	 * @return the prefix query of a wildcard string like <code>"abc*"</code>,
+	 *         or <code>null</code> if <code>query</code> is not one.
+	 */
+	static PrefixQuery parse(Object query) {
+		if (!(query instanceof String)) {
+			return null;
+		}
+		String string = (String) query;
+		int wildcard = string.indexOf( '*' );
+		if (wildcard < 0 || wildcard != string.length() - 1 || string.indexOf( '?' ) >= 0) {
+			return null;
+		}
+		return new PrefixQuery( string.substring( 0, wildcard ) );
+	}
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+/**
+ * Query for all values of a key between two bounds, in the order of the
+ * stored keys. A <code>null</code> bound leaves that end of the range open.
+ * <p>
+ * Numbers and dates only sort by value in indexes with
+ * {@link BerkeleyDbIndexImplementation#KEY_ENCODING_TYPED} keys, where an
+ * open end also stays within the type of the other bound. Indexes with
+ * string keys compare the bytes of the string form.
+ */
+public class RangeQuery {
+
+	Object _from;
+	Object _to;
+	boolean _fromInclusive;
+	boolean _toInclusive;
+
+	public RangeQuery(Object from, Object to) {
+		this( from, to, true, true );
+	}
+
+	public RangeQuery(Object from, Object to, boolean fromInclusive, boolean toInclusive) {
+		_from = from;
+		_to = to;
+		_fromInclusive = fromInclusive;
+		_toInclusive = toInclusive;
+	}
+
+}
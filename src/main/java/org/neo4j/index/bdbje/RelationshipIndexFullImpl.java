@@ -28,6 +28,7 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.index.IndexHits;
 
 import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityIndex;
 import com.sleepycat.persist.EntityStore;
 import com.sleepycat.persist.PrimaryIndex;
 import com.sleepycat.persist.SecondaryIndex;
@@ -100,12 +101,37 @@ public class RelationshipIndexFullImpl implements org.neo4j.graphdb.index.Relati
 		SecondaryIndex<String,Long,RelationshipEntity> sIndex =
 				store.getSecondaryIndex(index, String.class, "value");
 
-		return new EntityIndexHits( sIndex.subIndex(value.toString()).entities() );
+		EntityIndex<Long, RelationshipEntity> values = sIndex.subIndex(value.toString());
+		return new EntityIndexHits( values.entities(), values );
 	}
 
+	/**
+	 * Adds the relationship unless another one is indexed with the value.
+	 * Writes to the entity store are immediate, so the value is only locked
+	 * while checking and adding.
+	 */
 	@Override
 	public Relationship putIfAbsent(Relationship entity, String key, Object value) {
-		throw new UnsupportedOperationException();
+		ValueLocks locks = service.dataSource().valueLocks;
+		Thread owner = Thread.currentThread();
+		byte[] lockKey = KeyCodec.encodeString(value.toString());
+		boolean locked = locks.lock(owner, identifier, key, lockKey);
+		try {
+			IndexHits<Relationship> hits = get(key, value);
+			try {
+				if (hits.hasNext()) {
+					return hits.next();
+				}
+			} finally {
+				hits.close();
+			}
+			add(entity, key, value);
+			return null;
+		} finally {
+			if (locked) {
+				locks.unlock(owner, identifier, key, lockKey);
+			}
+		}
 	}
 
 	@Override
@@ -199,8 +225,13 @@ public class RelationshipIndexFullImpl implements org.neo4j.graphdb.index.Relati
 
 		Iterator<RelationshipEntity> it;
 
-		EntityIndexHits(EntityCursor<RelationshipEntity> c) {
+		EntityIndex<Long, RelationshipEntity> values;
+
+		int size = -1;
+
+		EntityIndexHits(EntityCursor<RelationshipEntity> c, EntityIndex<Long, RelationshipEntity> v) {
 			cursor = c;
+			values = v;
 
 			it = cursor.iterator();
 		}
@@ -228,8 +259,10 @@ public class RelationshipIndexFullImpl implements org.neo4j.graphdb.index.Relati
 
 		@Override
 		public int size() {
-			// TODO Auto-generated method stub
-			return 0;
+			if (size < 0) {
+				size = (int) values.count();
+			}
+			return size;
 		}
 
 		@Override
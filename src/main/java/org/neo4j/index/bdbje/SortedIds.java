@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+
+/**
+ * Ascending ids which can skip ahead, so that sorted posting lists are
+ * intersected and merged without materializing the result.
+ * <p>
+ * An intersection leapfrogs its operands, smallest first, each seeking to
+ * the candidate of the others. Arrays seek by galloping search, which costs
+ * about the logarithm of the distance skipped.
+ */
+abstract class SortedIds implements IdIterator
+{
+	private boolean fetched;
+	private boolean hasNext;
+	private long from;
+
+	/**
+	 * Moves forward to the first id not less than <code>target</code>.
+	 *
+	 * @return whether there is one.
+	 */
+	abstract boolean seek( long target );
+
+	/**
+	 * @return the id of the last successful {@link #seek(long)}.
+	 */
+	abstract long current();
+
+	/**
+	 * @return an upper bound of the number of ids.
+	 */
+	abstract int size();
+
+	/**
+	 * @return the same ids, from the start.
+	 */
+	abstract SortedIds copy();
+
+	@Override
+	public boolean hasNext()
+	{
+		if ( !fetched )
+		{
+			hasNext = from >= 0 && seek( from );
+			fetched = true;
+		}
+		return hasNext;
+	}
+
+	@Override
+	public long next()
+	{
+		if ( !hasNext() )
+		{
+			throw new NoSuchElementException();
+		}
+		long id = current();
+		// ids are never negative, Long.MAX_VALUE + 1 ends the iteration
+		from = id + 1;
+		fetched = false;
+		return id;
+	}
+
+	int count()
+	{
+		SortedIds ids = copy();
+		int count = 0;
+		while ( ids.hasNext() )
+		{
+			ids.next();
+			count++;
+		}
+		return count;
+	}
+
+	static final Comparator<SortedIds> BY_SIZE = new Comparator<SortedIds>()
+	{
+		@Override
+		public int compare( SortedIds o1, SortedIds o2 )
+		{
+			return o1.size() - o2.size();
+		}
+	};
+
+	static SortedIds and( SortedIds... operands )
+	{
+		return operands.length == 1 ? operands[0] : new And( operands );
+	}
+
+	static SortedIds or( SortedIds... operands )
+	{
+		return operands.length == 1 ? operands[0] : new Or( operands );
+	}
+
+	static class Array extends SortedIds
+	{
+		private final long[] ids;
+		private int pos;
+
+		/**
+		 * @param ids sorted ascending, duplicates are allowed.
+		 */
+		Array( long[] ids )
+		{
+			this.ids = ids;
+		}
+
+		@Override
+		boolean seek( long target )
+		{
+			if ( pos >= ids.length || ids[pos] >= target )
+			{
+				return pos < ids.length;
+			}
+			int low = pos;
+			int step = 1;
+			while ( low + step < ids.length && ids[low + step] < target )
+			{
+				low += step;
+				step <<= 1;
+			}
+			int high = Math.min( low + step, ids.length - 1 );
+			int index = Arrays.binarySearch( ids, low + 1, high + 1, target );
+			pos = index < 0 ? -index - 1 : index;
+			// binary search finds any of equal ids, seek the first
+			while ( pos > low + 1 && ids[pos - 1] == target )
+			{
+				pos--;
+			}
+			return pos < ids.length;
+		}
+
+		@Override
+		long current()
+		{
+			return ids[pos];
+		}
+
+		@Override
+		int size()
+		{
+			return ids.length;
+		}
+
+		@Override
+		SortedIds copy()
+		{
+			return new Array( ids );
+		}
+	}
+
+	static class And extends SortedIds
+	{
+		private final SortedIds[] operands;
+		private long current;
+
+		And( SortedIds[] operands )
+		{
+			if ( operands.length == 0 )
+			{
+				throw new IllegalArgumentException( "No operands" );
+			}
+			this.operands = operands.clone();
+			Arrays.sort( this.operands, BY_SIZE );
+		}
+
+		@Override
+		boolean seek( long target )
+		{
+			while ( true )
+			{
+				if ( !operands[0].seek( target ) )
+				{
+					return false;
+				}
+				long candidate = operands[0].current();
+				boolean agreed = true;
+				for ( int i = 1; i < operands.length && agreed; i++ )
+				{
+					if ( !operands[i].seek( candidate ) )
+					{
+						return false;
+					}
+					if ( operands[i].current() > candidate )
+					{
+						target = operands[i].current();
+						agreed = false;
+					}
+				}
+				if ( agreed )
+				{
+					current = candidate;
+					return true;
+				}
+			}
+		}
+
+		@Override
+		long current()
+		{
+			return current;
+		}
+
+		@Override
+		int size()
+		{
+			return operands[0].size();
+		}
+
+		@Override
+		SortedIds copy()
+		{
+			SortedIds[] copies = new SortedIds[operands.length];
+			for ( int i = 0; i < copies.length; i++ )
+			{
+				copies[i] = operands[i].copy();
+			}
+			return new And( copies );
+		}
+	}
+
+	static class Or extends SortedIds
+	{
+		private final SortedIds[] operands;
+		private final boolean[] exhausted;
+		private long current;
+
+		Or( SortedIds[] operands )
+		{
+			if ( operands.length == 0 )
+			{
+				throw new IllegalArgumentException( "No operands" );
+			}
+			this.operands = operands.clone();
+			this.exhausted = new boolean[operands.length];
+		}
+
+		@Override
+		boolean seek( long target )
+		{
+			boolean found = false;
+			long min = Long.MAX_VALUE;
+			for ( int i = 0; i < operands.length; i++ )
+			{
+				if ( exhausted[i] )
+				{
+					continue;
+				}
+				if ( !operands[i].seek( target ) )
+				{
+					exhausted[i] = true;
+					continue;
+				}
+				found = true;
+				min = Math.min( min, operands[i].current() );
+			}
+			current = min;
+			return found;
+		}
+
+		@Override
+		long current()
+		{
+			return current;
+		}
+
+		@Override
+		int size()
+		{
+			long size = 0;
+			for ( SortedIds operand : operands )
+			{
+				size += operand.size();
+			}
+			return (int) Math.min( size, Integer.MAX_VALUE );
+		}
+
+		@Override
+		SortedIds copy()
+		{
+			SortedIds[] copies = new SortedIds[operands.length];
+			for ( int i = 0; i < copies.length; i++ )
+			{
+				copies[i] = operands[i].copy();
+			}
+			return new Or( copies );
+		}
+	}
+}
@@ -102,6 +102,27 @@ class TxData
 		return ids;
 	}
 
+	/**
+	 * @return the ids of every value of <code>key</code>, never null.
+	 */
+	Map<Object, Set<Long>> getValues( String key )
+	{
+		Map<Object, Set<Long>> values = keyMap( key, false );
+		if ( values == null )
+		{
+			return Collections.emptyMap();
+		}
+		return values;
+	}
+
+	/**
+	 * @return the keys with changes, never null.
+	 */
+	Set<String> getKeys()
+	{
+		return data != null ? data.keySet() : Collections.<String>emptySet();
+	}
+
 	Map<String, Map<Object, Set<Long>>> rawMap()
 	{
 		return data;
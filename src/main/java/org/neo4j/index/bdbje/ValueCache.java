@@ -0,0 +1,215 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Write-back LRU cache of the posting lists of one key database of the
+ * batch inserter, sized by
+ * {@link org.neo4j.graphdb.index.BatchInserterIndex#setCacheCapacity(String, int)}
+ * in number of values.
+ * <p>
+ * Adds are merged into the cached list of the value, which is written once
+ * when it is evicted or on {@link #flush()}. Lists stay cached after being
+ * written, so that reads during the load need not go to the database.
+ */
+class ValueCache
+{
+	private static final long[] EMPTY = new long[0];
+
+	private final Database db;
+	private final LinkedHashMap<ByteBuffer, Entry> entries;
+	private int capacity;
+	// nothing needs to be read back while the database is empty
+	private boolean empty;
+
+	ValueCache( Database db, int capacity, boolean empty )
+	{
+		this.db = db;
+		this.capacity = Math.max( 1, capacity );
+		this.empty = empty;
+		entries = new LinkedHashMap<ByteBuffer, Entry>( 16, 0.75f, true )
+		{
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<ByteBuffer, Entry> eldest )
+			{
+				if ( size() <= ValueCache.this.capacity )
+				{
+					return false;
+				}
+				write( eldest.getKey(), eldest.getValue() );
+				return true;
+			}
+		};
+	}
+
+	void add( byte[] indexKey, long id )
+	{
+		entry( indexKey ).add( id );
+	}
+
+	long[] get( byte[] indexKey )
+	{
+		return entry( indexKey ).ids();
+	}
+
+	private Entry entry( byte[] indexKey )
+	{
+		ByteBuffer key = ByteBuffer.wrap( indexKey );
+		Entry entry = entries.get( key );
+		if ( entry == null )
+		{
+			entry = new Entry( read( indexKey ) );
+			entries.put( key, entry );
+		}
+		return entry;
+	}
+
+	private long[] read( byte[] indexKey )
+	{
+		if ( empty )
+		{
+			return EMPTY;
+		}
+		DatabaseEntry data = new DatabaseEntry();
+		if ( db.get( null, new DatabaseEntry( indexKey ), data, LockMode.READ_UNCOMMITTED ) == OperationStatus.SUCCESS )
+		{
+			// lists of the legacy format may be unsorted
+			return ArrayUtil.sorted( Postings.decode( data.getData() ) );
+		}
+		return EMPTY;
+	}
+
+	private void write( ByteBuffer key, Entry entry )
+	{
+		if ( entry.dirty )
+		{
+			db.put( null, new DatabaseEntry( key.array() ), new DatabaseEntry( Postings.encode( entry.ids() ) ) );
+			entry.dirty = false;
+			empty = false;
+		}
+	}
+
+	/**
+	 * Writes every modified list, in key order.
+	 */
+	void flush()
+	{
+		List<Map.Entry<ByteBuffer, Entry>> dirty = new ArrayList<Map.Entry<ByteBuffer, Entry>>();
+		for ( Map.Entry<ByteBuffer, Entry> entry : entries.entrySet() )
+		{
+			if ( entry.getValue().dirty )
+			{
+				dirty.add( entry );
+			}
+		}
+		Collections.sort( dirty, ORDER );
+		for ( Map.Entry<ByteBuffer, Entry> entry : dirty )
+		{
+			write( entry.getKey(), entry.getValue() );
+		}
+	}
+
+	void setCapacity( int capacity )
+	{
+		this.capacity = Math.max( 1, capacity );
+		Iterator<Map.Entry<ByteBuffer, Entry>> eldest = entries.entrySet().iterator();
+		while ( entries.size() > this.capacity )
+		{
+			Map.Entry<ByteBuffer, Entry> entry = eldest.next();
+			write( entry.getKey(), entry.getValue() );
+			eldest.remove();
+		}
+	}
+
+	int size()
+	{
+		return entries.size();
+	}
+
+	private static final Comparator<Map.Entry<ByteBuffer, Entry>> ORDER = new Comparator<Map.Entry<ByteBuffer, Entry>>()
+	{
+		@Override
+		public int compare( Map.Entry<ByteBuffer, Entry> o1, Map.Entry<ByteBuffer, Entry> o2 )
+		{
+			return KeyCodec.compare( o1.getKey().array(), o2.getKey().array() );
+		}
+	};
+
+	/**
+	 * The sorted ids of one value, with room to add more.
+	 */
+	private static final class Entry
+	{
+		private long[] ids;
+		private int size;
+		// the first size ids, until the next add
+		private long[] view;
+		boolean dirty;
+
+		Entry( long[] ids )
+		{
+			this.ids = ids;
+			this.size = ids.length;
+		}
+
+		void add( long id )
+		{
+			int position = size > 0 && ids[size - 1] < id ? -size - 1 : Arrays.binarySearch( ids, 0, size, id );
+			if ( position >= 0 )
+			{
+				return;
+			}
+			position = -position - 1;
+			if ( size == ids.length )
+			{
+				ids = Arrays.copyOf( ids, Math.max( 4, size * 2 ) );
+			}
+			System.arraycopy( ids, position, ids, position + 1, size - position );
+			ids[position] = id;
+			size++;
+			view = null;
+			dirty = true;
+		}
+
+		long[] ids()
+		{
+			if ( view == null )
+			{
+				view = ids.length == size ? ids : Arrays.copyOf( ids, size );
+			}
+			return view;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.neo4j.kernel.DeadlockDetectedException;
+
+/**
+ * Exclusive locks on single (index, key, value) combinations, which
+ * {@link BerkeleyDbIndex#putIfAbsent} holds until its transaction completes.
+ * Owners locking different values never wait for each other, and releasing
+ * a value only wakes the owners waiting for that value. An owner that would
+ * wait for a value held by an owner already waiting for it, directly or
+ * through others, gets a {@link DeadlockDetectedException} instead.
+ * <p>
+ * These locks are not known to the kernel lock manager, so a cycle through
+ * kernel locks is not seen here. Waits are therefore bounded, an owner still
+ * waiting after the timeout gets a {@link DeadlockDetectedException} too.
+ */
+class ValueLocks
+{
+	static final long DEFAULT_TIMEOUT = 60000;
+
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final Map<Lock, Holder> owners = new HashMap<Lock, Holder>();
+	private final Map<Object, List<Lock>> held = new HashMap<Object, List<Lock>>();
+	private final Map<Object, Lock> waiting = new HashMap<Object, Lock>();
+	private final long timeout;
+
+	ValueLocks()
+	{
+		this( DEFAULT_TIMEOUT );
+	}
+
+	/**
+	 * @param timeout the longest time in milliseconds to wait for a value.
+	 */
+	ValueLocks( long timeout )
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Waits until the value is not locked by another owner, and locks it.
+	 *
+	 * @return <code>false</code> if <code>owner</code> already held the lock.
+	 * @throws DeadlockDetectedException if waiting would deadlock, or the
+	 *             value was not released within the timeout.
+	 */
+	boolean lock( Object owner, IndexIdentifier identifier, String key, byte[] indexKey )
+	{
+		Lock lock = new Lock( identifier, key, indexKey );
+		long deadline = System.currentTimeMillis() + timeout;
+		monitor.lock();
+		try
+		{
+			while ( true )
+			{
+				Holder current = owners.get( lock );
+				if ( current == null )
+				{
+					owners.put( lock, new Holder( owner, monitor.newCondition() ) );
+					List<Lock> locks = held.get( owner );
+					if ( locks == null )
+					{
+						locks = new ArrayList<Lock>();
+						held.put( owner, locks );
+					}
+					locks.add( lock );
+					return true;
+				}
+				if ( current.owner == owner )
+				{
+					return false;
+				}
+				if ( waitsFor( current.owner, owner ) )
+				{
+					throw new DeadlockDetectedException( owner + " can not wait for " + lock + " held by "
+							+ current.owner + " which is waiting for it" );
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if ( remaining <= 0 )
+				{
+					throw new DeadlockDetectedException( owner + " waited " + timeout + "ms for " + lock
+							+ " held by " + current.owner );
+				}
+				waiting.put( owner, lock );
+				try
+				{
+					current.released.await( remaining, TimeUnit.MILLISECONDS );
+				}
+				catch ( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					throw new RuntimeException( "Interrupted waiting for " + lock, e );
+				}
+				finally
+				{
+					waiting.remove( owner );
+				}
+			}
+		}
+		finally
+		{
+			monitor.unlock();
+		}
+	}
+
+	void unlock( Object owner, IndexIdentifier identifier, String key, byte[] indexKey )
+	{
+		Lock lock = new Lock( identifier, key, indexKey );
+		monitor.lock();
+		try
+		{
+			List<Lock> locks = held.get( owner );
+			Holder current = owners.get( lock );
+			if ( locks != null && current != null && current.owner == owner )
+			{
+				release( lock );
+				locks.remove( lock );
+				if ( locks.isEmpty() )
+				{
+					held.remove( owner );
+				}
+			}
+		}
+		finally
+		{
+			monitor.unlock();
+		}
+	}
+
+	void unlockAll( Object owner )
+	{
+		monitor.lock();
+		try
+		{
+			List<Lock> locks = held.remove( owner );
+			if ( locks != null )
+			{
+				for ( Lock lock : locks )
+				{
+					release( lock );
+				}
+			}
+		}
+		finally
+		{
+			monitor.unlock();
+		}
+	}
+
+	boolean holdsAny( Object owner )
+	{
+		monitor.lock();
+		try
+		{
+			return held.containsKey( owner );
+		}
+		finally
+		{
+			monitor.unlock();
+		}
+	}
+
+	private void release( Lock lock )
+	{
+		owners.remove( lock ).released.signalAll();
+	}
+
+	// whether following what owners wait for leads from one owner to another
+	private boolean waitsFor( Object from, Object to )
+	{
+		Object current = from;
+		for ( int i = 0; current != null && i <= waiting.size(); i++ )
+		{
+			if ( current == to )
+			{
+				return true;
+			}
+			Lock lock = waiting.get( current );
+			Holder holder = lock != null ? owners.get( lock ) : null;
+			current = holder != null ? holder.owner : null;
+		}
+		return false;
+	}
+
+	// the owner of a value and the condition its waiters wait on
+	private static final class Holder
+	{
+		final Object owner;
+		final Condition released;
+
+		Holder( Object owner, Condition released )
+		{
+			this.owner = owner;
+			this.released = released;
+		}
+	}
+
+	private static final class Lock
+	{
+		final IndexIdentifier identifier;
+		final String key;
+		final byte[] indexKey;
+
+		Lock( IndexIdentifier identifier, String key, byte[] indexKey )
+		{
+			this.identifier = identifier;
+			this.key = key;
+			this.indexKey = indexKey;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( identifier.hashCode() * 31 + key.hashCode() ) * 31 + Arrays.hashCode( indexKey );
+		}
+
+		@Override
+		public boolean equals( Object obj )
+		{
+			if ( !( obj instanceof Lock ) )
+			{
+				return false;
+			}
+			Lock other = (Lock) obj;
+			return identifier.equals( other.identifier ) && key.equals( other.key )
+					&& Arrays.equals( indexKey, other.indexKey );
+		}
+
+		@Override
+		public String toString()
+		{
+			return identifier + " " + key + "=" + Arrays.toString( indexKey );
+		}
+	}
+}
@@ -21,6 +21,14 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.neo4j.index.bdbje.TestBerkeley;
 import org.neo4j.index.bdbje.TestBerkeleyBatchInsert;
+import org.neo4j.index.bdbje.TestBloomFilter;
+import org.neo4j.index.bdbje.TestBulkLoader;
+import org.neo4j.index.bdbje.TestKeyCodec;
+import org.neo4j.index.bdbje.TestPostingCache;
+import org.neo4j.index.bdbje.TestPostings;
+import org.neo4j.index.bdbje.TestSharedEnvironment;
+import org.neo4j.index.bdbje.TestSortedIds;
+import org.neo4j.index.bdbje.TestValueLocks;
 
 
 
@@ -29,7 +37,15 @@ import org.neo4j.index.bdbje.TestBerkeleyBatchInsert;
 	value = {
 		TestBerkeley.class,
 		// TestBerkeley.class,
-		TestBerkeleyBatchInsert.class
+		TestBerkeleyBatchInsert.class,
+		TestPostings.class,
+		TestKeyCodec.class,
+		TestSortedIds.class,
+		TestPostingCache.class,
+		TestBloomFilter.class,
+		TestValueLocks.class,
+		TestBulkLoader.class,
+		TestSharedEnvironment.class
 	} )
 public class AllTests {
 	// always empty
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.util.Random;
+
+import javolution.util.FastList;
+import javolution.util.FastSet;
+
+/**
+ * Compares the sorted primitive merge of {@link ArrayUtil#include(long[], long[])}
+ * and {@link ArrayUtil#exclude(long[], long[])} with the boxing javolution set
+ * based implementation it replaced.
+ */
+public class ArrayUtilSpeed {
+
+	private static final int[]	SIZES	= { 10, 10000, 1000000 };
+
+
+	public static void main( String[] args ) {
+		System.err.println( "main in " + ArrayUtilSpeed.class );
+		Random random = new Random( 42 );
+		for ( int size : SIZES ) {
+			long[] existing = ids( random, size );
+			long[] added = ids( random, Math.max( 1, size / 100 ) );
+			int rounds = Math.max( 3, 10000000 / size );
+
+			// warm up both paths before measuring
+			run( existing, added, rounds, true );
+			run( existing, added, rounds, false );
+
+			long t = System.nanoTime();
+			long checksum = run( existing, added, rounds, true );
+			long oldTime = System.nanoTime() - t;
+
+			t = System.nanoTime();
+			checksum -= run( existing, added, rounds, false );
+			long newTime = System.nanoTime() - t;
+
+			assert checksum == 0;
+			System.out.println( size + " ids, " + rounds + " rounds: old " + ( oldTime / rounds ) + "ns, new "
+					+ ( newTime / rounds ) + "ns per include+exclude" );
+		}
+	}
+
+
+	private static long[] ids( Random random, int size ) {
+		long[] ids = new long[size];
+		long id = 0;
+		for ( int i = 0; i < size; i++ ) {
+			id += 1 + random.nextInt( 16 );
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+
+	private static long run( long[] existing, long[] added, int rounds, boolean old ) {
+		long checksum = 0;
+		for ( int i = 0; i < rounds; i++ ) {
+			long[] included = old ? oldInclude( existing, added ) : ArrayUtil.include( existing, added );
+			long[] excluded = old ? oldExclude( included, added ) : ArrayUtil.exclude( included, added );
+			checksum += included.length + excluded.length;
+		}
+		return checksum;
+	}
+
+
+	@SuppressWarnings("boxing")
+	private static long[] oldInclude( long[] existingIds, long[] entityIds ) {
+		FastSet<Long> ids = FastSet.newInstance();
+		try {
+			for ( int i = 0; i < existingIds.length; i++ ) {
+				ids.add( existingIds[i] );
+			}
+			for ( int i = 0; i < entityIds.length; i++ ) {
+				ids.add( entityIds[i] );
+			}
+			long[] result = new long[ids.size()];
+			int i = 0;
+			for ( FastSet.Record r = ids.head(), end = ids.tail(); ( r = r.getNext() ) != end; ) {
+				result[i++] = ids.valueOf( r );
+			}
+			return result;
+		} finally {
+			FastSet.recycle( ids );
+		}
+	}
+
+
+	@SuppressWarnings("boxing")
+	private static long[] oldExclude( long[] existingIds, long[] entityIds ) {
+		FastSet<Long> entityIdsSet = FastSet.newInstance();
+		try {
+			for ( int i = 0; i < entityIds.length; i++ ) {
+				entityIdsSet.add( entityIds[i] );
+			}
+			FastList<Long> ids = FastList.newInstance();
+			for ( long id : existingIds ) {
+				if ( !entityIdsSet.contains( id ) ) {
+					ids.add( id );
+				}
+			}
+			long[] result = new long[ids.size()];
+			int i = 0;
+			for ( FastList.Node<Long> n = ids.head(), end = ids.tail(); ( n = n.getNext() ) != end; ) {
+				result[i++] = n.getValue();
+			}
+			return result;
+		} finally {
+			FastSet.recycle( entityIdsSet );
+		}
+	}
+}
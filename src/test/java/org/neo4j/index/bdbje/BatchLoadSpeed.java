@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import java.io.File;
+
+import org.neo4j.graphdb.index.BatchInserterIndex;
+import org.neo4j.graphdb.index.BatchInserterIndexProvider;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.impl.batchinsert.BatchInserter;
+import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
+
+/**
+ * Measures bulk loads of the batch inserter index with
+ * {@link BerkeleyDbIndexImplementation#KEY_BATCH_DEFERRED_WRITE} off and on.
+ */
+public class BatchLoadSpeed {
+
+	private static final String	PATH	= "target/var/batchspeed";
+
+	private static final int	NODES	= 200000;
+
+
+	public static void main( String[] args ) {
+		System.err.println( "main in " + BatchLoadSpeed.class );
+		Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+		BatchInserter inserter = new BatchInserterImpl( PATH );
+		BatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			for ( String deferred : new String[] { "false", "true" } ) {
+				BatchInserterIndex index =
+						provider.nodeIndex( "load" + deferred,
+							MapUtil.stringMap( BerkeleyDbIndexImplementation.KEY_BATCH_DEFERRED_WRITE, deferred,
+								BerkeleyDbIndexImplementation.KEY_BULK_LOAD, "true" ) );
+				long t = System.currentTimeMillis();
+				for ( int i = 0; i < NODES; i++ ) {
+					index.add( i, MapUtil.map( "key", "value" + i, "bucket", i % 100 ) );
+				}
+				index.flush();
+				long time = Math.max( 1, System.currentTimeMillis() - t );
+				System.out.println( "deferred write " + deferred + ": " + ( 2L * NODES * 1000 / time ) + " pairs/s" );
+			}
+		} finally {
+			provider.shutdown();
+			inserter.shutdown();
+		}
+	}
+}
@@ -19,10 +19,19 @@
  */
 package org.neo4j.index.bdbje;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
-
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
@@ -31,6 +40,7 @@ import org.junit.Test;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.index.Index;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.index.RelationshipIndex;
@@ -38,6 +48,14 @@ import org.neo4j.helpers.collection.MapUtil;
 
 public class TestBerkeley extends Neo4jTestCase {
 
+	// pages are in id order, which is not necessarily creation order
+	private static final Comparator<Node> BY_ID = new Comparator<Node>() {
+		@Override
+		public int compare( Node o1, Node o2 ) {
+			return o1.getId() < o2.getId() ? -1 : ( o1.getId() == o2.getId() ? 0 : 1 );
+		}
+	};
+
 	// @Override
 	// protected boolean manageMyOwnTxFinish() {
 	// return true;
@@ -63,12 +81,11 @@ public class TestBerkeley extends Neo4jTestCase {
 		assertContains( index.get( "name", "Mattias" ), node1, node2 );
 
 		index.remove( node1, "name", "Mattias" );
-		// this should be better implemented
-		assertContains( index.get( "name", "Mattias" ), node1, node2 );
+		assertContains( index.get( "name", "Mattias" ), node2 );
 		restartTx();
 		assertContains( index.get( "name", "Mattias" ), node2 );
 		index.remove( node2, "name", "Mattias" );
-		assertContains( index.get( "name", "Mattias" ), node2 );
+		assertContains( index.get( "name", "Mattias" ) );
 		node1.delete();
 		node2.delete();
 
@@ -109,12 +126,11 @@ public class TestBerkeley extends Neo4jTestCase {
 
 
 		index.remove( r1, "name", "Mattias" );
-		// this should be better implemented
-		assertContains( index.get( "name", "Mattias" ), r1, r2 );
+		assertContains( index.get( "name", "Mattias" ), r2 );
 		restartTx();
 		assertContains( index.get( "name", "Mattias" ), r2 );
 		index.remove( r2, "name", "Mattias" );
-		assertContains( index.get( "name", "Mattias" ), r2 );
+		assertContains( index.get( "name", "Mattias" ) );
 		r2.delete();
 		r1.delete();
 		node1.delete();
@@ -160,12 +176,11 @@ public class TestBerkeley extends Neo4jTestCase {
 
 
 		index.remove( r1, "name", "Mattias" );
-		// this should be better implemented
-		assertContains( index.get( "name", "Mattias" ), r1, r2 );
+		assertContains( index.get( "name", "Mattias" ), r2 );
 		restartTx();
 		assertContains( index.get( "name", "Mattias" ), r2 );
 		index.remove( r2, "name", "Mattias" );
-		assertContains( index.get( "name", "Mattias" ), r2 );
+		assertContains( index.get( "name", "Mattias" ) );
 		r2.delete();
 		r1.delete();
 		node1.delete();
@@ -235,12 +250,11 @@ public class TestBerkeley extends Neo4jTestCase {
 
 
 		index.remove( r1, "name", "Mattias" );
-		// this should be better implemented
-		assertContains( index.get( "name", "Mattias" ), r1, r2 );
+		assertContains( index.get( "name", "Mattias" ), r2 );
 		restartTx();
 		assertContains( index.get( "name", "Mattias" ), r2 );
 		index.remove( r2, "name", "Mattias" );
-		assertContains( index.get( "name", "Mattias" ), r2 );
+		assertContains( index.get( "name", "Mattias" ) );
 		r2.delete();
 		r1.delete();
 		node1.delete();
@@ -253,6 +267,473 @@ public class TestBerkeley extends Neo4jTestCase {
 		// }
 	}
 
+	@Test
+	public void testRollback() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "fastN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node node = graphDb().createNode();
+		restartTx();
+		index.add( node, "rolled", "back" );
+		assertContains( index.get( "rolled", "back" ), node );
+		restartTx( false );
+		assertContains( index.get( "rolled", "back" ) );
+	}
+
+	@Test
+	public void testDuplicatesStorage() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "dupN", MapUtil.stringMap( "provider", "berkeleydb-je",
+				BerkeleyDbIndexImplementation.KEY_STORAGE, BerkeleyDbIndexImplementation.STORAGE_DUPLICATES ) );
+
+		Node node1 = graphDb().createNode();
+		Node node2 = graphDb().createNode();
+		index.add( node1, "name", "Mattias" );
+		index.add( node2, "name", "Mattias" );
+		restartTx();
+		assertContains( index.get( "name", "Mattias" ), node1, node2 );
+		assertContainsInOrder( index.query( "name", new DecreaseOrderQuery( "Mattias" ) ), node2, node1 );
+		assertEquals( 2, index.get( "name", "Mattias" ).size() );
+
+		index.remove( node1, "name", "Mattias" );
+		restartTx();
+		assertContains( index.get( "name", "Mattias" ), node2 );
+		index.remove( node2, "name", "Mattias" );
+		restartTx();
+		assertContains( index.get( "name", "Mattias" ) );
+		node1.delete();
+		node2.delete();
+	}
+
+	@Test
+	public void testRangeQuery() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "rangeN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node[] nodes = new Node[5];
+		for ( int i = 0; i < nodes.length; i++ ) {
+			nodes[i] = graphDb().createNode();
+			index.add( nodes[i], "timestamp", (long) ( i - 2 ) * 1000 );
+			index.add( nodes[i], "name", "name" + i );
+		}
+		restartTx();
+		assertContainsInOrder( index.query( "timestamp", new RangeQuery( -1000L, 1000L ) ), nodes[1], nodes[2], nodes[3] );
+		assertContainsInOrder( index.query( "timestamp", new RangeQuery( -1000, 1000, false, true ) ), nodes[2], nodes[3] );
+		assertContainsInOrder( index.query( "timestamp", new RangeQuery( null, 0 ) ), nodes[0], nodes[1], nodes[2] );
+		assertContainsInOrder( index.query( "timestamp", new RangeQuery( 0, null, false, true ) ), nodes[3], nodes[4] );
+		assertContainsInOrder( index.query( "name", new RangeQuery( "name1", "name3", true, false ) ), nodes[1], nodes[2] );
+		assertEquals( 3, index.query( "timestamp", new RangeQuery( -1000L, 1000L ) ).size() );
+		assertContains( index.query( "timestamp", new RangeQuery( 1000L, -1000L ) ) );
+
+		// changes of the transaction are part of the range
+		index.remove( nodes[2], "timestamp", 0L );
+		index.add( nodes[4], "timestamp", 500L );
+		IndexHits<Node> hits = index.query( "timestamp", new RangeQuery( -1000L, 1000L ) );
+		assertEquals( 3, hits.size() );
+		assertContainsInOrder( hits, nodes[1], nodes[4], nodes[3] );
+		restartTx();
+		assertContainsInOrder( index.query( "timestamp", new RangeQuery( -1000L, 1000L ) ), nodes[1], nodes[4], nodes[3] );
+	}
+
+	@Test
+	public void testPrefixQuery() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "prefixN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node node1 = graphDb().createNode();
+		Node node2 = graphDb().createNode();
+		Node node3 = graphDb().createNode();
+		index.add( node1, "id", "user:1234:a" );
+		index.add( node2, "id", "user:1234:b" );
+		index.add( node3, "id", "user:12345" );
+		restartTx();
+		assertContainsInOrder( index.query( "id", new PrefixQuery( "user:1234:" ) ), node1, node2 );
+		assertContainsInOrder( index.query( "id", "user:1234*" ), node1, node2, node3 );
+		assertContainsInOrder( index.query( "id", new PrefixQuery( "user:", 2 ) ), node1, node2 );
+		assertEquals( 2, index.query( "id", new PrefixQuery( "user:", 2 ) ).size() );
+		assertContains( index.query( "id", new PrefixQuery( "admin:" ) ) );
+		assertNull( PrefixQuery.parse( "" ) );
+		try {
+			index.query( "id", "" );
+			fail( "an empty query string is not a prefix query" );
+		} catch ( RuntimeException e ) {
+			assertFalse( e instanceof IndexOutOfBoundsException );
+		}
+	}
+
+	@Test
+	public void testPagedQuery() throws Exception {
+		for ( String storage : new String[] { BerkeleyDbIndexImplementation.STORAGE_POSTINGS,
+				BerkeleyDbIndexImplementation.STORAGE_DUPLICATES } ) {
+			Index<Node> index = graphDb().index().forNodes( "paged-" + storage, MapUtil.stringMap( "provider", "berkeleydb-je",
+					BerkeleyDbIndexImplementation.KEY_STORAGE, storage ) );
+			Node[] nodes = new Node[50];
+			for ( int i = 0; i < nodes.length; i++ ) {
+				nodes[i] = graphDb().createNode();
+				index.add( nodes[i], "type", "hot" );
+			}
+			Arrays.sort( nodes, BY_ID );
+			restartTx();
+			assertContainsInOrder( index.query( "type", new PagedQuery( "hot", 0, 2 ) ), nodes[0], nodes[1] );
+			assertContainsInOrder( index.query( "type", new PagedQuery( "hot", 10, 3 ) ), nodes[10], nodes[11], nodes[12] );
+			assertContainsInOrder( index.query( "type", new PagedQuery( "hot", 48, 10 ) ), nodes[48], nodes[49] );
+			assertContainsInOrder( index.query( "type", PagedQuery.after( "hot", nodes[20].getId(), 2 ) ), nodes[21], nodes[22] );
+			assertContains( index.query( "type", PagedQuery.after( "hot", nodes[49].getId(), 2 ) ) );
+
+			index.remove( nodes[21], "type", "hot" );
+			assertContainsInOrder( index.query( "type", PagedQuery.after( "hot", nodes[20].getId(), 2 ) ), nodes[22], nodes[23] );
+			restartTx();
+			assertContainsInOrder( index.query( "type", PagedQuery.after( "hot", nodes[20].getId(), 2 ) ), nodes[22], nodes[23] );
+		}
+	}
+
+	@Test
+	public void testGetIds() throws Exception {
+		BerkeleyDbIndex<Node> index = (BerkeleyDbIndex<Node>) graphDb().index().forNodes( "idsN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node[] nodes = { graphDb().createNode(), graphDb().createNode(), graphDb().createNode() };
+		Arrays.sort( nodes, BY_ID );
+		for ( Node node : nodes ) {
+			index.add( node, "color", "red" );
+		}
+		index.add( nodes[0], "size", 10 );
+		index.add( nodes[2], "size", 20 );
+		restartTx();
+		assertArrayEquals( new long[] { nodes[0].getId(), nodes[1].getId(), nodes[2].getId() }, index.getIds( "color", "red" ) );
+		assertArrayEquals( new long[0], index.getIds( "color", "blue" ) );
+		assertArrayEquals( new long[] { nodes[2].getId(), nodes[1].getId(), nodes[0].getId() },
+				index.queryIds( "color", new DecreaseOrderQuery( "red" ) ) );
+		assertArrayEquals( new long[] { nodes[0].getId(), nodes[2].getId() }, index.queryIds( "size", new RangeQuery( 0, 100 ) ) );
+		assertArrayEquals( new long[] { nodes[1].getId() }, index.queryIds( "color", new PagedQuery( "red", 1, 1 ) ) );
+
+		index.remove( nodes[1], "color", "red" );
+		assertArrayEquals( new long[] { nodes[0].getId(), nodes[2].getId() }, index.getIds( "color", "red" ) );
+	}
+
+	@Test
+	public void testCompoundQuery() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "compoundN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node[] nodes = new Node[4];
+		for ( int i = 0; i < nodes.length; i++ ) {
+			nodes[i] = graphDb().createNode();
+		}
+		Arrays.sort( nodes, BY_ID );
+		index.add( nodes[0], "type", "X" );
+		index.add( nodes[1], "type", "X" );
+		index.add( nodes[2], "type", "Y" );
+		index.add( nodes[0], "region", "north" );
+		index.add( nodes[2], "region", "north" );
+		index.add( nodes[3], "region", "south" );
+		restartTx();
+
+		assertContainsInOrder( index.query( CompoundQuery.and( CompoundQuery.term( "type", "X" ),
+				CompoundQuery.term( "region", "north" ) ) ), nodes[0] );
+		IndexHits<Node> hits = index.query( CompoundQuery.or( CompoundQuery.term( "type", "Y" ),
+				CompoundQuery.term( "region", "south" ), CompoundQuery.term( "type", "X" ) ) );
+		assertEquals( 4, hits.size() );
+		assertContainsInOrder( hits, nodes );
+		assertContainsInOrder( index.query( CompoundQuery.and( CompoundQuery.term( "region", new PrefixQuery( "" ) ),
+				CompoundQuery.or( CompoundQuery.term( "type", "Y" ), CompoundQuery.term( "type", "Z" ) ) ) ), nodes[2] );
+
+		index.add( nodes[3], "type", "X" );
+		assertContainsInOrder( index.query( CompoundQuery.and( CompoundQuery.term( "type", "X" ),
+				CompoundQuery.term( "region", "south" ) ) ), nodes[3] );
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		for ( String storage : new String[] { BerkeleyDbIndexImplementation.STORAGE_POSTINGS,
+				BerkeleyDbIndexImplementation.STORAGE_DUPLICATES } ) {
+			BerkeleyDbIndex<Node> index = (BerkeleyDbIndex<Node>) graphDb().index().forNodes( "stats-" + storage,
+					MapUtil.stringMap( "provider", "berkeleydb-je", BerkeleyDbIndexImplementation.KEY_STORAGE, storage ) );
+			Node node1 = graphDb().createNode();
+			Node node2 = graphDb().createNode();
+			index.add( node1, "color", "red" );
+			index.add( node2, "color", "red" );
+			index.add( node2, "color", "blue" );
+			restartTx();
+			assertEquals( 2, index.count( "color", "red" ) );
+			assertEquals( 0, index.count( "color", "green" ) );
+			assertEquals( 2, index.distinctValues( "color" ) );
+			assertEquals( 3, index.totalIds( "color" ) );
+			assertEquals( 2, index.get( "color", "red" ).size() );
+
+			index.remove( node2, "color", "blue" );
+			index.remove( node2, "color", "red" );
+			assertEquals( 1, index.count( "color", "red" ) );
+			restartTx();
+			assertEquals( 1, index.count( "color", "red" ) );
+			assertEquals( 1, index.distinctValues( "color" ) );
+			assertEquals( 1, index.totalIds( "color" ) );
+		}
+	}
+
+	@Test
+	public void testCachedIndex() throws Exception {
+		for ( String storage : new String[] { BerkeleyDbIndexImplementation.STORAGE_POSTINGS,
+				BerkeleyDbIndexImplementation.STORAGE_DUPLICATES } ) {
+			Index<Node> index = graphDb().index().forNodes( "cached-" + storage, MapUtil.stringMap( "provider", "berkeleydb-je",
+					BerkeleyDbIndexImplementation.KEY_STORAGE, storage, BerkeleyDbIndexImplementation.KEY_CACHE_SIZE, "1m" ) );
+			Node node1 = graphDb().createNode();
+			Node node2 = graphDb().createNode();
+			index.add( node1, "name", "Mattias" );
+			restartTx();
+			assertContains( index.get( "name", "Mattias" ), node1 );
+			assertContains( index.get( "name", "Mattias" ), node1 );
+			// committed changes replace the cached list
+			index.add( node2, "name", "Mattias" );
+			assertContains( index.get( "name", "Mattias" ), node1, node2 );
+			restartTx();
+			assertContains( index.get( "name", "Mattias" ), node1, node2 );
+			index.remove( node1, "name", "Mattias" );
+			assertContains( index.get( "name", "Mattias" ), node2 );
+			restartTx();
+			assertContains( index.get( "name", "Mattias" ), node2 );
+			assertEquals( 1, index.get( "name", "Mattias" ).size() );
+		}
+	}
+
+	@Test
+	public void testBloomFilter() throws Exception {
+		BerkeleyDbIndex<Node> index = (BerkeleyDbIndex<Node>) graphDb().index().forNodes( "bloomN", MapUtil.stringMap(
+				"provider", "berkeleydb-je", BerkeleyDbIndexImplementation.KEY_BLOOM_FILTER, "1000" ) );
+		Node node1 = graphDb().createNode();
+		Node node2 = graphDb().createNode();
+		assertContains( index.get( "name", "Mattias" ) );
+		index.add( node1, "name", "Mattias" );
+		assertContains( index.get( "name", "Mattias" ), node1 );
+		restartTx();
+		assertContains( index.get( "name", "Mattias" ), node1 );
+		assertEquals( 1, index.count( "name", "Mattias" ) );
+		assertContains( index.get( "name", "Tobias" ) );
+		assertEquals( 0, index.count( "name", "Tobias" ) );
+		assertEquals( 0, index.getIds( "name", "Tobias" ).length );
+		index.add( node2, "name", "Tobias" );
+		restartTx();
+		assertContains( index.get( "name", "Tobias" ), node2 );
+		index.remove( node2, "name", "Tobias" );
+		restartTx();
+		assertContains( index.get( "name", "Tobias" ) );
+	}
+
+	@Test
+	public void testPutIfAbsent() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "uniqueN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node node1 = graphDb().createNode();
+		Node node2 = graphDb().createNode();
+		assertEquals( null, index.putIfAbsent( node1, "name", "Mattias" ) );
+		assertEquals( node1, index.putIfAbsent( node2, "name", "Mattias" ) );
+		restartTx();
+		assertEquals( node1, index.putIfAbsent( node2, "name", "Mattias" ) );
+		assertEquals( null, index.putIfAbsent( node2, "name", "Tobias" ) );
+		restartTx();
+		assertContains( index.get( "name", "Mattias" ), node1 );
+		assertContains( index.get( "name", "Tobias" ), node2 );
+	}
+
+	@Test
+	public void testConcurrentPutIfAbsent() throws Exception {
+		final Index<Node> index = graphDb().index().forNodes( "uniqueConcurrentN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		restartTx();
+		final AtomicInteger winners = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for ( int i = 0; i < threads.length; i++ ) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for ( int value = 0; value < 20; value++ ) {
+						Transaction tx = graphDb().beginTx();
+						try {
+							if ( index.putIfAbsent( graphDb().createNode(), "id", value ) == null ) {
+								winners.incrementAndGet();
+							}
+							tx.success();
+						} finally {
+							tx.finish();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+		assertEquals( 20, winners.get() );
+		for ( int value = 0; value < 20; value++ ) {
+			assertEquals( 1, index.get( "id", value ).size() );
+		}
+	}
+
+	@Test
+	public void testConcurrentCommits() throws Exception {
+		final Index<Node> index = graphDb().index().forNodes( "groupCommitN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		restartTx();
+		Thread[] threads = new Thread[8];
+		for ( int i = 0; i < threads.length; i++ ) {
+			final int thread = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for ( int round = 0; round < 50; round++ ) {
+						Transaction tx = graphDb().beginTx();
+						try {
+							Node node = graphDb().createNode();
+							// a hot value shared by all, and one per thread
+							index.add( node, "kind", "hot" );
+							index.add( node, "thread", thread );
+							if ( round % 2 == 1 ) {
+								index.remove( node, "kind", "hot" );
+							}
+							tx.success();
+						} finally {
+							tx.finish();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+		assertEquals( 200, index.get( "kind", "hot" ).size() );
+		for ( int i = 0; i < threads.length; i++ ) {
+			assertEquals( 50, index.get( "thread", i ).size() );
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void testConcurrentCommitsToSeparateIndexes() throws Exception {
+		final Index<Node> shared = graphDb().index().forNodes( "groupCommitShared", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		final Index<Node>[] own = new Index[4];
+		for ( int i = 0; i < own.length; i++ ) {
+			own[i] = graphDb().index().forNodes( "groupCommit" + i, BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		}
+		restartTx();
+		Thread[] threads = new Thread[own.length];
+		for ( int i = 0; i < threads.length; i++ ) {
+			final Index<Node> index = own[i];
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for ( int round = 0; round < 50; round++ ) {
+						Transaction tx = graphDb().beginTx();
+						try {
+							Node node = graphDb().createNode();
+							// groups of disjoint indexes, sometimes joined by the shared one
+							index.add( node, "round", round );
+							if ( round % 5 == 0 ) {
+								shared.add( node, "round", round );
+							}
+							tx.success();
+						} finally {
+							tx.finish();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for ( Thread thread : threads ) {
+			thread.join();
+		}
+		for ( int round = 0; round < 50; round++ ) {
+			for ( Index<Node> index : own ) {
+				assertEquals( 1, index.get( "round", round ).size() );
+			}
+			assertEquals( round % 5 == 0 ? own.length : 0, shared.get( "round", round ).size() );
+		}
+	}
+
+	@Test
+	public void testRemoveEntity() throws Exception {
+		for ( String storage : new String[] { BerkeleyDbIndexImplementation.STORAGE_POSTINGS,
+				BerkeleyDbIndexImplementation.STORAGE_DUPLICATES } ) {
+			Index<Node> index = graphDb().index().forNodes( "reverse-" + storage, MapUtil.stringMap( "provider", "berkeleydb-je",
+					BerkeleyDbIndexImplementation.KEY_STORAGE, storage, BerkeleyDbIndexImplementation.KEY_REVERSE_INDEX, "true" ) );
+			Node node1 = graphDb().createNode();
+			Node node2 = graphDb().createNode();
+			index.add( node1, "name", "Mattias" );
+			index.add( node1, "name", "Matt" );
+			index.add( node1, "age", 30 );
+			index.add( node2, "name", "Mattias" );
+			restartTx();
+			index.remove( node1, "name" );
+			assertContains( index.get( "name", "Mattias" ), node2 );
+			assertContains( index.get( "name", "Matt" ) );
+			restartTx();
+			assertContains( index.get( "name", "Mattias" ), node2 );
+			assertContains( index.get( "name", "Matt" ) );
+			assertContains( index.get( "age", 30 ), node1 );
+
+			// values added in the same transaction go as well
+			index.add( node1, "name", "Tobias" );
+			index.remove( node1 );
+			assertContains( index.get( "name", "Tobias" ) );
+			restartTx();
+			assertContains( index.get( "age", 30 ) );
+			assertContains( index.get( "name", "Tobias" ) );
+			assertContains( index.get( "name", "Mattias" ), node2 );
+		}
+	}
+
+	@Test( expected = UnsupportedOperationException.class )
+	public void testRemoveEntityNeedsReverseIndex() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "noReverseN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		index.remove( graphDb().createNode() );
+	}
+
+	@Test
+	public void testDeleteIndex() throws Exception {
+		Index<Node> deleted = graphDb().index().forNodes( "deletedN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Index<Node> kept = graphDb().index().forNodes( "keptN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node node = graphDb().createNode();
+		deleted.add( node, "name", "Mattias" );
+		kept.add( node, "name", "Mattias" );
+		restartTx();
+		assertContains( deleted.get( "name", "Mattias" ), node );
+		File indexDir = new File( BerkeleyDbDataSource.indexDir( getDbPath().getAbsolutePath(),
+				new IndexIdentifier( Node.class, "deletedN" ) ) );
+		assertTrue( indexDir.exists() );
+
+		deleted.delete();
+		restartTx();
+		assertFalse( graphDb().index().existsForNodes( "deletedN" ) );
+		assertFalse( indexDir.exists() );
+		// other indexes stay usable
+		assertContains( kept.get( "name", "Mattias" ), node );
+		kept.add( graphDb().createNode(), "name", "Tobias" );
+		restartTx();
+		assertEquals( 1, kept.get( "name", "Tobias" ).size() );
+
+		// a new index of the same name starts empty
+		Index<Node> recreated = graphDb().index().forNodes( "deletedN", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		assertContains( recreated.get( "name", "Mattias" ) );
+	}
+
+	@Test
+	public void testDeleteIndexWithOpenHits() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "openHitsN", MapUtil.stringMap( "provider", "berkeleydb-je",
+				BerkeleyDbIndexImplementation.KEY_STORAGE, BerkeleyDbIndexImplementation.STORAGE_DUPLICATES ) );
+		for ( int i = 0; i < 5; i++ ) {
+			Node node = graphDb().createNode();
+			index.add( node, "name", "Mattias" );
+			index.add( node, "age", i );
+		}
+		restartTx();
+		IndexHits<Node> duplicates = index.get( "name", "Mattias" );
+		IndexHits<Node> range = index.query( "age", new RangeQuery( 0, 4 ) );
+		duplicates.next();
+		range.next();
+
+		// the cursors of the unfinished hits are closed with the index
+		index.delete();
+		restartTx();
+		int rest = 0;
+		while ( duplicates.hasNext() ) {
+			duplicates.next();
+			rest++;
+		}
+		assertTrue( rest < 4 );
+		assertFalse( range.hasNext() );
+		duplicates.close();
+		range.close();
+	}
+
 	@Test
 	public void testInsertSome() {
 		Index<Node> index = graphDb().index().forNodes( "fast", MapUtil.stringMap( "provider", "berkeleydb-je" ) );
@@ -309,6 +790,34 @@ public class TestBerkeley extends Neo4jTestCase {
 		System.out.println( "get(" + resultCount + "):" + (double)( System.currentTimeMillis() - t ) / (double)count );
 	}
 
+	@Test
+	public void testRebuild() throws Exception {
+		Index<Node> index = graphDb().index().forNodes( "rebuilt", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+		Node indexed = graphDb().createNode();
+		indexed.setProperty( "color", "red" );
+		index.add( indexed, "color", "red" );
+		Node[] nodes = new Node[300];
+		for ( int i = 0; i < nodes.length; i++ ) {
+			nodes[i] = graphDb().createNode();
+			nodes[i].setProperty( "color", i % 3 == 0 ? "red" : "blue" );
+			nodes[i].setProperty( "size", i );
+		}
+		restartTx();
+		assertEquals( 1, index.get( "color", "red" ).size() );
+
+		// partitions leave their runs on disk, the merge reads them back
+		long entries = new BerkeleyDbIndexRebuild( 3, 1, null ).rebuild( index, "color", "size" );
+		assertTrue( entries >= 2 * nodes.length );
+		assertEquals( 101, index.get( "color", "red" ).size() );
+		assertEquals( 200, index.get( "color", "blue" ).size() );
+		assertContains( index.get( "size", 42 ), nodes[42] );
+		assertEquals( 301, index.query( "color", new RangeQuery( "blue", "red", true, true ) ).size() );
+
+		// running it again changes nothing
+		new BerkeleyDbIndexRebuild( 2, 1 << 20, null ).rebuild( index, "color" );
+		assertEquals( 101, index.get( "color", "red" ).size() );
+	}
+
 	private static class RelationshipTypeImpl implements RelationshipType {
 
 		private final String _name;
@@ -138,6 +138,132 @@ public class TestBerkeleyBatchInsert extends Neo4jTestCase {
 	}
 	
 	
+	@Test
+	public void testManyIdsPerValue() {
+		BatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			BatchInserterIndex index = provider.nodeIndex( "colors", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+			for ( int i = 0; i < 3000; i++ ) {
+				long id = inserter.createNode( null );
+				index.add( id, MapUtil.map( "color", i % 3 == 0 ? "red" : "blue" ) );
+				if ( i == 1500 ) {
+					assertEquals( 501, index.get( "color", "red" ).size() );
+				}
+			}
+			assertEquals( 1000, index.get( "color", "red" ).size() );
+			assertEquals( 2000, index.get( "color", "blue" ).size() );
+		} finally {
+			provider.shutdown();
+			inserter.shutdown();
+		}
+		
+		GraphDatabaseService db = new EmbeddedGraphDatabase( PATH );
+		try {
+			Index<Node> dbIndex = db.index().forNodes( "colors" );
+			assertEquals( 1000, dbIndex.get( "color", "red" ).size() );
+			assertEquals( 2000, dbIndex.get( "color", "blue" ).size() );
+		} finally {
+			db.shutdown();
+		}
+	}
+	
+	
+	@Test
+	public void testCacheCapacity() {
+		BatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			BatchInserterIndex index = provider.nodeIndex( "cached", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+			index.add( inserter.createNode( null ), MapUtil.map( "name", "Joe0" ) );
+			// fewer values than added, so lists are written and read back
+			index.setCacheCapacity( "name", 10 );
+			for ( int i = 1; i < 1000; i++ ) {
+				long id = inserter.createNode( null );
+				index.add( id, MapUtil.map( "name", "Joe" + ( i % 50 ) ) );
+				index.add( id, MapUtil.map( "name", "Joe" + ( i % 50 ) ) );
+			}
+			for ( int i = 0; i < 50; i++ ) {
+				assertEquals( 20, index.get( "name", "Joe" + i ).size() );
+			}
+			index.setCacheCapacity( "name", 1 );
+			index.flush();
+			assertEquals( 20, index.get( "name", "Joe0" ).size() );
+		} finally {
+			provider.shutdown();
+			inserter.shutdown();
+		}
+		
+		GraphDatabaseService db = new EmbeddedGraphDatabase( PATH );
+		try {
+			Index<Node> dbIndex = db.index().forNodes( "cached" );
+			for ( int i = 0; i < 50; i++ ) {
+				assertEquals( 20, dbIndex.get( "name", "Joe" + i ).size() );
+			}
+		} finally {
+			db.shutdown();
+		}
+	}
+	
+	
+	@Test
+	public void testBulkLoad() {
+		BatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			// a small buffer so that most of it is sorted in runs on disk
+			BatchInserterIndex index =
+					provider.nodeIndex( "bulk", MapUtil.stringMap( BerkeleyDbIndexImplementation.KEY_BULK_LOAD, "true",
+						BerkeleyDbIndexImplementation.KEY_BULK_BUFFER_SIZE, "64k" ) );
+			for ( int i = 0; i < 100000; i++ ) {
+				long id = inserter.createNode( null );
+				index.add( id, MapUtil.map( "name", "Joe" + ( i % 1000 ), "other", "Schmoe" ) );
+			}
+			assertEquals( 0, index.get( "name", "Joe1" ).size() );
+			index.flush();
+			assertEquals( 100, index.get( "name", "Joe1" ).size() );
+			// a second load merges with what is there
+			long id = inserter.createNode( null );
+			index.add( id, MapUtil.map( "name", "Joe1" ) );
+			index.flush();
+			assertEquals( 101, index.get( "name", "Joe1" ).size() );
+			assertEquals( 100001, index.get( "other", "Schmoe" ).size() );
+		} finally {
+			provider.shutdown();
+			inserter.shutdown();
+		}
+		
+		GraphDatabaseService db = new EmbeddedGraphDatabase( PATH );
+		try {
+			Index<Node> dbIndex = db.index().forNodes( "bulk" );
+			for ( int i = 0; i < 10; i++ ) {
+				assertEquals( 100, dbIndex.get( "name", "Joe" + ( 2 + i ) ).size() );
+			}
+			assertEquals( 101, dbIndex.get( "name", "Joe1" ).size() );
+		} finally {
+			db.shutdown();
+		}
+	}
+	
+	
+	@Test
+	public void testDeferredWriteLoad() {
+		BatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			for ( String deferred : new String[] { "false", "true" } ) {
+				BatchInserterIndex index =
+						provider.nodeIndex( "load" + deferred,
+							MapUtil.stringMap( BerkeleyDbIndexImplementation.KEY_BATCH_DEFERRED_WRITE, deferred,
+								BerkeleyDbIndexImplementation.KEY_BULK_LOAD, "true" ) );
+				for ( int i = 0; i < 2000; i++ ) {
+					index.add( i, MapUtil.map( "key", "value" + i, "bucket", i % 100 ) );
+				}
+				index.flush();
+				assertEquals( 20, index.get( "bucket", 7 ).size() );
+			}
+		} finally {
+			provider.shutdown();
+		}
+	}
+	
+	
 	@Test
 	public void testFindCreatedIndex() {
 		String indexName = "persons";
@@ -169,6 +295,62 @@ public class TestBerkeleyBatchInsert extends Neo4jTestCase {
 	}
 	
 	
+	@Test
+	public void testCreatedWithOnlineDefaults() {
+		BerkeleyDbBatchInserterIndexProvider indexProvider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			BatchInserterIndex ages = indexProvider.nodeIndex( "ages", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+			Map<String, Object> properties = MapUtil.map( "age", 42 );
+			ages.add( inserter.createNode( properties ), properties );
+		} finally {
+			indexProvider.shutdown();
+		}
+		inserter.shutdown();
+		GraphDatabaseService graphDb = new EmbeddedGraphDatabase( PATH );
+		try {
+			Index<Node> ages = graphDb.index().forNodes( "ages" );
+			assertEquals( BerkeleyDbIndexImplementation.KEY_ENCODING_TYPED,
+				graphDb.index().getConfiguration( ages ).get( BerkeleyDbIndexImplementation.KEY_KEY_ENCODING ) );
+			Assert.assertNotNull( ages.get( "age", 42 ).getSingle() );
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+	
+	
+	@Test
+	public void testReverseIndex() {
+		BerkeleyDbBatchInserterIndexProvider indexProvider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		long node;
+		try {
+			BatchInserterIndex people =
+					indexProvider.nodeIndex( "people", MapUtil.stringMap( BerkeleyDbIndexImplementation.KEY_REVERSE_INDEX, "true" ) );
+			Map<String, Object> properties = MapUtil.map( "name", "test", "city", "Lund" );
+			node = inserter.createNode( properties );
+			people.add( node, properties );
+		} finally {
+			indexProvider.shutdown();
+		}
+		inserter.shutdown();
+		GraphDatabaseService graphDb = new EmbeddedGraphDatabase( PATH );
+		try {
+			Index<Node> people = graphDb.index().forNodes( "people" );
+			Transaction tx = graphDb.beginTx();
+			try {
+				// finds the values to remove from what the batch inserter wrote
+				people.remove( graphDb.getNodeById( node ) );
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			Assert.assertFalse( people.get( "name", "test" ).hasNext() );
+			Assert.assertFalse( people.get( "city", "Lund" ).hasNext() );
+		} finally {
+			graphDb.shutdown();
+		}
+	}
+	
+	
 	@Ignore
 	@Test
 	public void testCanIndexRelationships() {
@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestBloomFilter {
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter( 10000 );
+		for ( int i = 0; i < 10000; i++ ) {
+			filter.add( KeyCodec.encode( "value" + i ) );
+		}
+		for ( int i = 0; i < 10000; i++ ) {
+			assertTrue( filter.mightContain( KeyCodec.encode( "value" + i ) ) );
+		}
+		int falsePositives = 0;
+		for ( int i = 10000; i < 20000; i++ ) {
+			if ( filter.mightContain( KeyCodec.encode( "value" + i ) ) ) {
+				falsePositives++;
+			}
+		}
+		assertTrue( "false positives: " + falsePositives, falsePositives < 300 );
+	}
+
+	@Test
+	public void testSaveAndRead() {
+		BloomFilter filter = new BloomFilter( 100 );
+		for ( long i = 0; i < 100; i++ ) {
+			filter.add( KeyCodec.encode( i ) );
+		}
+		byte[] saved = filter.toBytes();
+		assertEquals( 8 * BloomFilter.words( 100 ), saved.length );
+		BloomFilter read = BloomFilter.read( saved );
+		assertEquals( filter.words(), read.words() );
+		for ( long i = 0; i < 1000; i++ ) {
+			assertEquals( filter.mightContain( KeyCodec.encode( i ) ), read.mightContain( KeyCodec.encode( i ) ) );
+		}
+	}
+}
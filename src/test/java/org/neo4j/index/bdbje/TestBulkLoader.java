@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestBulkLoader {
+
+	@Test
+	public void testSortByKeyThenId() throws Exception {
+		BulkLoader.RunBuffer buffer = new BulkLoader.RunBuffer( 16 );
+		Random random = new Random( 7 );
+		for ( int i = 0; i < 5000; i++ ) {
+			assertTrue( buffer.add( KeyCodec.encode( random.nextInt( 100 ) ), random.nextInt( 1000 ), Integer.MAX_VALUE ) );
+		}
+		buffer.sort();
+		BulkLoader.Tuples tuples = buffer.tuples();
+		byte[] previousKey = null;
+		long previousId = -1;
+		int count = 0;
+		while ( tuples.next() ) {
+			if ( previousKey != null ) {
+				int order = KeyCodec.compare( previousKey, tuples.key() );
+				assertTrue( order < 0 || ( order == 0 && previousId <= tuples.id() ) );
+			}
+			previousKey = tuples.key();
+			previousId = tuples.id();
+			count++;
+		}
+		assertEquals( 5000, count );
+	}
+
+	@Test
+	public void testBufferIsBounded() {
+		BulkLoader.RunBuffer buffer = new BulkLoader.RunBuffer( 16 );
+		byte[] key = KeyCodec.encode( "value" );
+		int pair = 4 + key.length + 8 + 4;
+		for ( int i = 0; i < 10; i++ ) {
+			assertTrue( buffer.add( key, i, 10 * pair ) );
+		}
+		assertFalse( buffer.add( key, 10, 10 * pair ) );
+		assertEquals( 10, buffer.size() );
+		// growing by doubling stops at the bound
+		assertTrue( buffer.capacity() <= 10 * pair );
+		buffer.clear();
+		assertTrue( buffer.add( key, 10, 10 * pair ) );
+	}
+
+	@Test
+	public void testReadRun() throws Exception {
+		BulkLoader.RunBuffer buffer = new BulkLoader.RunBuffer( 16 );
+		for ( int i = 10; i > 0; i-- ) {
+			buffer.add( KeyCodec.encode( "value" + ( i % 3 ) ), i, Integer.MAX_VALUE );
+		}
+		buffer.sort();
+		File run = File.createTempFile( "run", ".tmp" );
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bytes );
+			buffer.writeTo( out );
+			out.close();
+			FileOutputStream file = new FileOutputStream( run );
+			file.write( bytes.toByteArray() );
+			file.close();
+
+			BulkLoader.RunReader reader = new BulkLoader.RunReader( run );
+			BulkLoader.Tuples expected = buffer.tuples();
+			while ( expected.next() ) {
+				assertTrue( reader.next() );
+				assertEquals( KeyCodec.decode( expected.key() ), KeyCodec.decode( reader.key() ) );
+				assertEquals( expected.id(), reader.id() );
+			}
+			assertFalse( reader.next() );
+			reader.close();
+		} finally {
+			run.delete();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestKeyCodec {
+
+	@Test
+	public void testLongOrder() {
+		long[] values = { Long.MIN_VALUE, -10, -1, 0, 1, 9, 10, 1000, Long.MAX_VALUE };
+		for ( int i = 1; i < values.length; i++ ) {
+			assertTrue( KeyCodec.compare( KeyCodec.encode( values[i - 1] ), KeyCodec.encode( values[i] ) ) < 0 );
+			assertEquals( values[i], KeyCodec.decode( KeyCodec.encode( values[i] ) ) );
+		}
+	}
+
+	@Test
+	public void testDoubleOrder() {
+		double[] values = { Double.NEGATIVE_INFINITY, -1e10, -1.5, -1e-9, 0.0, 1e-9, 1.5, 2, Double.POSITIVE_INFINITY };
+		for ( int i = 1; i < values.length; i++ ) {
+			assertTrue( KeyCodec.compare( KeyCodec.encode( values[i - 1] ), KeyCodec.encode( values[i] ) ) < 0 );
+			assertEquals( values[i], KeyCodec.decode( KeyCodec.encode( values[i] ) ) );
+		}
+		assertArrayEquals( KeyCodec.encode( 0.0d ), KeyCodec.encode( -0.0d ) );
+	}
+
+	@Test
+	public void testIntegralTypesShareKeys() {
+		assertArrayEquals( KeyCodec.encode( 123L ), KeyCodec.encode( 123 ) );
+		assertArrayEquals( KeyCodec.encode( 123L ), KeyCodec.encode( (short) 123 ) );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( 123 ), KeyCodec.encode( "123" ) ) != 0 );
+	}
+
+	@Test
+	public void testStrings() {
+		assertEquals( "\u00e5ngstr\u00f6m", KeyCodec.decode( KeyCodec.encode( "\u00e5ngstr\u00f6m" ) ) );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( "abc" ), KeyCodec.encode( "abd" ) ) < 0 );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( "ab" ), KeyCodec.encode( "abc" ) ) < 0 );
+	}
+
+	@Test
+	public void testByteArraysAreTagged() {
+		byte[] abc = "abc".getBytes();
+		assertEquals( KeyCodec.BYTES, KeyCodec.encode( abc )[0] );
+		assertArrayEquals( abc, (byte[]) KeyCodec.decode( KeyCodec.encode( abc ) ) );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( abc ), KeyCodec.encode( "abc" ) ) != 0 );
+		byte[] encodedLong = KeyCodec.encode( 42L );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( encodedLong ), encodedLong ) != 0 );
+		assertTrue( KeyCodec.compare( KeyCodec.encode( new byte[] { 1, 2 } ), KeyCodec.encode( new byte[] { 1, 3 } ) ) < 0 );
+	}
+}
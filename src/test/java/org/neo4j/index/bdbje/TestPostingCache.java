@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestPostingCache {
+
+	private static byte[] key( int i ) {
+		return KeyCodec.encodeLong( i );
+	}
+
+	@Test
+	public void testPutGetInvalidate() {
+		PostingCache cache = new PostingCache( 1 << 20 );
+		assertNull( cache.get( null, key( 1 ) ) );
+		cache.put( null, key( 1 ), new long[] { 3, 4 } );
+		assertArrayEquals( new long[] { 3, 4 }, cache.get( null, key( 1 ) ) );
+		cache.invalidate( null, key( 1 ) );
+		assertNull( cache.get( null, key( 1 ) ) );
+		assertEquals( 0, cache.weight() );
+	}
+
+	@Test
+	public void testBoundedByBytes() {
+		long max = 64 * 1024;
+		PostingCache cache = new PostingCache( max );
+		for ( int i = 0; i < 10000; i++ ) {
+			cache.put( null, key( i ), new long[i % 50] );
+			assertTrue( cache.weight() <= max );
+		}
+		cache.invalidateAll( null );
+		assertEquals( 0, cache.weight() );
+	}
+
+	@Test
+	public void testHotValuesSurviveScan() {
+		PostingCache cache = new PostingCache( 256 * 1024 );
+		for ( int round = 0; round < 20; round++ ) {
+			for ( int i = 0; i < 100; i++ ) {
+				if ( cache.get( null, key( i ) ) == null ) {
+					cache.put( null, key( i ), new long[10] );
+				}
+			}
+		}
+		// a scan over many values asked for once, longer than an LRU would keep
+		// the hot values between two of their accesses
+		for ( int i = 1000; i < 100000; i++ ) {
+			cache.put( null, key( i ), new long[10] );
+			if ( i % 20 == 0 ) {
+				cache.get( null, key( i / 20 % 100 ) );
+			}
+		}
+		int hot = 0;
+		for ( int i = 0; i < 100; i++ ) {
+			if ( cache.get( null, key( i ) ) != null ) {
+				hot++;
+			}
+		}
+		assertTrue( "only " + hot + " hot values left", hot > 90 );
+		assertNotNull( cache.get( null, key( 0 ) ) );
+	}
+
+	@Test
+	public void testParseSize() {
+		assertEquals( 1000, PostingCache.parseSize( "1000" ) );
+		assertEquals( 512 * 1024, PostingCache.parseSize( "512k" ) );
+		assertEquals( 64L << 20, PostingCache.parseSize( " 64M " ) );
+		assertEquals( 1L << 30, PostingCache.parseSize( "1g" ) );
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestPostings {
+
+	@Test
+	public void testRoundTrip() {
+		long[] ids = { 0, 1, 2, 127, 128, 300, 16384, 1L << 35, Long.MAX_VALUE };
+		byte[] data = Postings.encode( ids );
+		assertFalse( Postings.isLegacy( data ) );
+		assertEquals( ids.length, Postings.size( data ) );
+		assertArrayEquals( ids, Postings.decode( data ) );
+
+		IdIterator reverse = Postings.reverseIterator( data );
+		for ( int i = ids.length - 1; i >= 0; i-- ) {
+			assertTrue( reverse.hasNext() );
+			assertEquals( ids[i], reverse.next() );
+		}
+		assertFalse( reverse.hasNext() );
+	}
+
+	@Test
+	public void testSmallerThanLegacy() {
+		long[] ids = new long[1000];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = 1000000 + i * 3;
+		}
+		assertTrue( Postings.encode( ids ).length * 3 < ArrayUtil.toBytes( ids ).length );
+	}
+
+	@Test
+	public void testLegacyFormat() {
+		long[] ids = { 5, 3, 9 };
+		byte[] data = ArrayUtil.toBytes( ids );
+		assertTrue( Postings.isLegacy( data ) );
+		assertEquals( 3, Postings.size( data ) );
+		assertArrayEquals( ids, Postings.decode( data ) );
+
+		IdIterator iterator = Postings.iterator( data );
+		assertEquals( 5, iterator.next() );
+		assertEquals( 3, iterator.next() );
+		assertEquals( 9, iterator.next() );
+		assertFalse( iterator.hasNext() );
+	}
+
+	@Test
+	public void testIncludeMergesSorted() {
+		assertArrayEquals( new long[] { 1, 2, 3, 5, 8 }, ArrayUtil.include( new long[] { 1, 3, 8 }, new long[] { 5, 2, 3 } ) );
+		assertArrayEquals( new long[] { 1, 2 }, ArrayUtil.include( new long[] { 2, 1 }, new long[0] ) );
+		long[] existing = { 1, 2 };
+		assertTrue( existing == ArrayUtil.include( existing, new long[] { 2 } ) );
+	}
+
+	@Test
+	public void testExclude() {
+		assertArrayEquals( new long[] { 1, 8 }, ArrayUtil.exclude( new long[] { 8, 3, 1 }, new long[] { 3, 4 } ) );
+		assertArrayEquals( new long[0], ArrayUtil.exclude( new long[] { 3 }, new long[] { 3 } ) );
+		long[] existing = { 1, 2 };
+		assertTrue( existing == ArrayUtil.exclude( existing, new long[] { 7 } ) );
+	}
+
+	@Test
+	public void testPage() {
+		long[] ids = new long[100];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = i * 1000;
+		}
+		byte[] data = Postings.encode( ids );
+		assertArrayEquals( new long[] { 0, 1000 }, Postings.page( data, -1, 0, 2 ) );
+		assertArrayEquals( new long[] { 5000, 6000, 7000 }, Postings.page( data, -1, 5, 3 ) );
+		assertArrayEquals( new long[] { 6000, 7000 }, Postings.page( data, 5000, 0, 2 ) );
+		assertArrayEquals( new long[] { 99000 }, Postings.page( data, 97500, 1, 10 ) );
+		assertArrayEquals( new long[0], Postings.page( data, 99000, 0, 10 ) );
+
+		// a prefix of the list is enough for the first ids only
+		byte[] prefix = Arrays.copyOf( data, 12 );
+		assertArrayEquals( new long[] { 0, 1000 }, Postings.page( prefix, -1, 0, 2 ) );
+		assertNull( Postings.page( prefix, -1, 50, 2 ) );
+
+		assertArrayEquals( new long[] { 5000, 6000, 7000 }, ArrayUtil.page( ids, -1, 5, 3 ) );
+		assertArrayEquals( new long[] { 6000, 7000 }, ArrayUtil.page( ids, 5500, 0, 2 ) );
+		assertArrayEquals( new long[0], ArrayUtil.page( ids, -1, 200, 2 ) );
+		assertTrue( ids == ArrayUtil.page( ids, -1, 0, Integer.MAX_VALUE ) );
+	}
+
+	@Test
+	public void testSkipListPage() {
+		long[] ids = new long[10000];
+		for ( int i = 0; i < ids.length; i++ ) {
+			ids[i] = 3L * i + ( i % 7 );
+		}
+		final byte[] data = Postings.encode( ids );
+		assertEquals( Postings.VERSION_SKIP_LIST, data[0] );
+		assertEquals( ids.length, Postings.size( data ) );
+		assertArrayEquals( ids, Postings.decode( data ) );
+		IdIterator reverse = Postings.reverseIterator( data );
+		for ( int i = ids.length - 1; i >= 0; i-- ) {
+			assertEquals( ids[i], reverse.next() );
+		}
+
+		long[] afterIds = { -1, 0, 5, 383, 384, 385, 1000, 29990, 29996, 29997, 40000 };
+		int[] offsets = { 0, 1, 127, 128, 129, 5000, 9999, 10000 };
+		for ( long afterId : afterIds ) {
+			for ( int offset : offsets ) {
+				for ( int limit : new int[] { 1, 10, 300, Integer.MAX_VALUE } ) {
+					assertArrayEquals( afterId + "/" + offset + "/" + limit, ArrayUtil.page( ids, afterId, offset, limit ),
+						Postings.page( data, afterId, offset, limit ) );
+				}
+			}
+		}
+
+		// a deep page reads the table and two blocks, not the list up to it
+		final int[] read = new int[1];
+		Postings.Source source = new Postings.Source() {
+			@Override
+			public byte[] read( int offset, int length ) {
+				byte[] bytes = new Postings.ArraySource( data ).read( offset, length );
+				read[0] += bytes.length;
+				return bytes;
+			}
+		};
+		assertArrayEquals( ArrayUtil.page( ids, 25000, 10, 5 ), Postings.page( source, 25000, 10, 5 ) );
+		assertTrue( "read " + read[0] + " of " + data.length, read[0] < data.length / 4 );
+	}
+}
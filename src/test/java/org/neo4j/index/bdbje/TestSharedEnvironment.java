@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.EmbeddedGraphDatabase;
+import org.neo4j.kernel.impl.batchinsert.BatchInserter;
+import org.neo4j.kernel.impl.batchinsert.BatchInserterImpl;
+
+import com.sleepycat.je.Environment;
+
+
+
+public class TestSharedEnvironment {
+	
+	private static final String	PATH	= "target/var/shared";
+	
+	
+	@Before
+	public void cleanDirectory() {
+		Neo4jTestCase.deleteFileOrDirectory( new File( PATH ) );
+	}
+	
+	
+	@Test
+	public void testMigrateAndDelete() {
+		long nodeId;
+		GraphDatabaseService db = new EmbeddedGraphDatabase( PATH );
+		try {
+			Transaction tx = db.beginTx();
+			try {
+				Node node = db.createNode();
+				nodeId = node.getId();
+				Index<Node> users = db.index().forNodes( "users", BerkeleyDbIndexImplementation.DEFAULT_CONFIG );
+				users.add( node, "name", "Joe" );
+				users.add( node, "age", 30 );
+				db.index().forNodes( "others", BerkeleyDbIndexImplementation.DEFAULT_CONFIG ).add( node, "name", "Joe" );
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			db.shutdown();
+		}
+		
+		assertEquals( 3, new BerkeleyDbEnvironmentMigration( PATH ).migrate() );
+		assertFalse( new File( PATH, "index/bdb/Node/users" ).exists() );
+		
+		db = new EmbeddedGraphDatabase( PATH, MapUtil.stringMap( "bdb_shared_environment", "true" ) );
+		try {
+			Index<Node> users = db.index().forNodes( "users" );
+			assertEquals( nodeId, users.get( "name", "Joe" ).getSingle().getId() );
+			assertEquals( nodeId, users.get( "age", 30 ).getSingle().getId() );
+			Transaction tx = db.beginTx();
+			try {
+				users.delete();
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+			assertFalse( db.index().existsForNodes( "users" ) );
+			assertEquals( nodeId, db.index().forNodes( "others" ).get( "name", "Joe" ).getSingle().getId() );
+		} finally {
+			db.shutdown();
+		}
+		
+		// the databases of the deleted index are removed from the shared environment
+		Environment shared =
+				new Environment( new File( PATH, "index/bdb/" + BerkeleyDbDataSource.SHARED_DIR ),
+					BerkeleyDbDataSource.environmentConfig( false ) );
+		try {
+			List<String> names = shared.getDatabaseNames();
+			for ( String name : names ) {
+				assertFalse( name, name.contains( "Node/users/" ) );
+			}
+			assertTrue( names.contains( BerkeleyDbDataSource.databaseName( new IndexIdentifier( Node.class, "others" ), "name" ) ) );
+		} finally {
+			shared.close();
+		}
+	}
+	
+	
+	@Test
+	public void testBatchInsertIntoShared() {
+		Map<String, String> shared = MapUtil.stringMap( "bdb_shared_environment", "true" );
+		GraphDatabaseService db = new EmbeddedGraphDatabase( PATH, shared );
+		try {
+			Transaction tx = db.beginTx();
+			try {
+				db.index().forNodes( "users", BerkeleyDbIndexImplementation.DEFAULT_CONFIG ).add( db.createNode(), "name", "Joe" );
+				tx.success();
+			} finally {
+				tx.finish();
+			}
+		} finally {
+			db.shutdown();
+		}
+		
+		long nodeId;
+		BatchInserter inserter = new BatchInserterImpl( PATH );
+		BerkeleyDbBatchInserterIndexProvider provider = new BerkeleyDbBatchInserterIndexProvider( inserter );
+		try {
+			Map<String, Object> properties = MapUtil.map( "name", "Ann" );
+			nodeId = inserter.createNode( properties );
+			provider.nodeIndex( "users", null ).add( nodeId, properties );
+		} finally {
+			provider.shutdown();
+			inserter.shutdown();
+		}
+		// written where the shared mode reads, not into an environment of its own
+		assertFalse( new File( PATH, "index/bdb/Node/users/name" ).exists() );
+		
+		db = new EmbeddedGraphDatabase( PATH, shared );
+		try {
+			Index<Node> users = db.index().forNodes( "users" );
+			assertEquals( nodeId, users.get( "name", "Ann" ).getSingle().getId() );
+			assertEquals( 1, users.get( "name", "Joe" ).size() );
+		} finally {
+			db.shutdown();
+		}
+	}
+}
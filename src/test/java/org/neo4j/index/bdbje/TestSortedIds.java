@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestSortedIds {
+
+	private static long[] drain( SortedIds ids ) {
+		long[] result = new long[0];
+		while ( ids.hasNext() ) {
+			result = Arrays.copyOf( result, result.length + 1 );
+			result[result.length - 1] = ids.next();
+		}
+		return result;
+	}
+
+	private static SortedIds ids( long... ids ) {
+		return new SortedIds.Array( ids );
+	}
+
+	@Test
+	public void testAnd() {
+		assertArrayEquals( new long[] { 3, 9 }, drain( SortedIds.and( ids( 1, 3, 5, 9 ), ids( 3, 4, 9, 12 ), ids( 0, 3, 9 ) ) ) );
+		assertArrayEquals( new long[0], drain( SortedIds.and( ids( 1, 2 ), ids() ) ) );
+	}
+
+	@Test
+	public void testOr() {
+		assertArrayEquals( new long[] { 1, 2, 3, 5 }, drain( SortedIds.or( ids( 1, 3 ), ids( 2, 3, 3, 5 ) ) ) );
+		assertArrayEquals( new long[] { 4 }, drain( SortedIds.or( ids(), ids( 4 ) ) ) );
+	}
+
+	@Test
+	public void testEmptyClauses() {
+		try {
+			SortedIds.and();
+			fail( "empty and() accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+		try {
+			SortedIds.or();
+			fail( "empty or() accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+		try {
+			CompoundQuery.and();
+			fail( "empty and() accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+		try {
+			CompoundQuery.or();
+			fail( "empty or() accepted" );
+		} catch ( IllegalArgumentException e ) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testNested() {
+		SortedIds ids = SortedIds.and( ids( 1, 2, 3, 4, 5, 6 ), SortedIds.or( ids( 2, 6 ), ids( 5, 7 ) ) );
+		assertEquals( 3, ids.count() );
+		assertArrayEquals( new long[] { 2, 5, 6 }, drain( ids ) );
+	}
+
+	@Test
+	public void testGallopingMatchesSets() {
+		Random random = new Random( 42 );
+		for ( int round = 0; round < 100; round++ ) {
+			TreeSet<Long> a = new TreeSet<Long>();
+			TreeSet<Long> b = new TreeSet<Long>();
+			for ( int i = 0; i < 1000; i++ ) {
+				a.add( (long) random.nextInt( 5000 ) );
+			}
+			for ( int i = 0; i < random.nextInt( 50 ); i++ ) {
+				b.add( (long) random.nextInt( 5000 ) );
+			}
+			TreeSet<Long> and = new TreeSet<Long>( a );
+			and.retainAll( b );
+			TreeSet<Long> or = new TreeSet<Long>( a );
+			or.addAll( b );
+			long[] arrayA = ArrayUtil.toPrimitiveLongArray( a );
+			long[] arrayB = ArrayUtil.toPrimitiveLongArray( b );
+			assertArrayEquals( ArrayUtil.toPrimitiveLongArray( and ), drain( SortedIds.and( ids( arrayA ), ids( arrayB ) ) ) );
+			assertArrayEquals( ArrayUtil.toPrimitiveLongArray( or ), drain( SortedIds.or( ids( arrayA ), ids( arrayB ) ) ) );
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2002-2013 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.index.bdbje;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.neo4j.graphdb.Node;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+public class TestValueLocks {
+
+	private static final IndexIdentifier INDEX = new IndexIdentifier( Node.class, "locks" );
+
+	private static byte[] value( String value ) {
+		return KeyCodec.encodeString( value );
+	}
+
+	@Test
+	public void testDifferentValuesDoNotWait() {
+		ValueLocks locks = new ValueLocks();
+		Object owner1 = new Object();
+		Object owner2 = new Object();
+		assertTrue( locks.lock( owner1, INDEX, "name", value( "a" ) ) );
+		assertTrue( locks.lock( owner2, INDEX, "name", value( "b" ) ) );
+		assertTrue( locks.lock( owner2, INDEX, "other", value( "a" ) ) );
+		assertFalse( locks.lock( owner1, INDEX, "name", value( "a" ) ) );
+		assertTrue( locks.holdsAny( owner1 ) );
+		locks.unlockAll( owner1 );
+		assertFalse( locks.holdsAny( owner1 ) );
+		locks.unlock( owner2, INDEX, "name", value( "b" ) );
+		locks.unlock( owner2, INDEX, "other", value( "a" ) );
+		assertFalse( locks.holdsAny( owner2 ) );
+	}
+
+	@Test
+	public void testSameValueWaitsForRelease() throws Exception {
+		final ValueLocks locks = new ValueLocks();
+		Object owner1 = new Object();
+		locks.lock( owner1, INDEX, "name", value( "a" ) );
+		final CountDownLatch acquired = new CountDownLatch( 1 );
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				locks.lock( this, INDEX, "name", value( "a" ) );
+				acquired.countDown();
+			}
+		};
+		waiter.start();
+		assertFalse( acquired.await( 100, TimeUnit.MILLISECONDS ) );
+		locks.unlockAll( owner1 );
+		assertTrue( acquired.await( 10, TimeUnit.SECONDS ) );
+		waiter.join();
+	}
+
+	@Test
+	public void testDeadlockDetected() throws Exception {
+		final ValueLocks locks = new ValueLocks();
+		final Object owner1 = new Object();
+		Object owner2 = new Object();
+		locks.lock( owner1, INDEX, "name", value( "a" ) );
+		locks.lock( owner2, INDEX, "name", value( "b" ) );
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				locks.lock( owner1, INDEX, "name", value( "b" ) );
+			}
+		};
+		waiter.start();
+		while ( waiter.getState() != Thread.State.TIMED_WAITING ) {
+			Thread.sleep( 1 );
+		}
+		try {
+			locks.lock( owner2, INDEX, "name", value( "a" ) );
+			fail( "owner2 waits for owner1 which waits for owner2" );
+		} catch ( DeadlockDetectedException e ) {
+			// expected
+		}
+		locks.unlockAll( owner2 );
+		waiter.join();
+		assertTrue( locks.holdsAny( owner1 ) );
+	}
+
+	@Test
+	public void testWaitIsBounded() throws Exception {
+		final ValueLocks locks = new ValueLocks( 50 );
+		final Object owner1 = new Object();
+		locks.lock( owner1, INDEX, "name", value( "a" ) );
+		try {
+			locks.lock( new Object(), INDEX, "name", value( "a" ) );
+			fail( "waited past the timeout" );
+		} catch ( DeadlockDetectedException e ) {
+			// expected
+		}
+		assertTrue( locks.holdsAny( owner1 ) );
+	}
+}